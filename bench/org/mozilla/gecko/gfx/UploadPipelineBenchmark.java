@@ -0,0 +1,366 @@
+/* -*- Mode: c++; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Mozilla Android code.
+ *
+ * The Initial Developer of the Original Code is Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Patrick Walton <pcwalton@mozilla.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.gecko.gfx;
+
+import android.graphics.Rect;
+import java.io.PrintStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Benchmarks the CPU side of the upload pipeline against the headless recording backend, across
+ * a range of image sizes.
+ *
+ * Each case is warmed up and then measured over several iterations, each of which repeats the
+ * operation until a minimum time has elapsed; the report gives the mean, minimum, and maximum
+ * time per operation across iterations. This lives outside src/ so it isn't shipped; run it with
+ * "ant bench".
+ */
+public class UploadPipelineBenchmark {
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASURED_ITERATIONS = 10;
+    // The minimum length of one iteration, in nanoseconds.
+    private static final long MIN_ITERATION_TIME = 100L * 1000 * 1000;
+
+    private static final int[][] IMAGE_SIZES = {
+        { 512, 512 }, { 1024, 1024 }, { 2048, 2048 }, { 4096, 4096 }, { 4096, 8192 }
+    };
+
+    private final PrintStream mOut;
+    private final RecordingGLBackend mBackend;
+    private ExecutorService mExecutor;
+    private CairoImage mImage;
+
+    public UploadPipelineBenchmark(PrintStream out) {
+        mOut = out;
+        mBackend = new RecordingGLBackend(0);   // Infinitely fast, so we measure only the CPU.
+    }
+
+    public static void main(String[] args) {
+        new UploadPipelineBenchmark(System.out).run();
+    }
+
+    public void run() {
+        mBackend.install();
+        // The same kind of executor that AsyncGLExecutorFactory creates.
+        mExecutor = new GLTaskExecutor(64);
+        try {
+            for (int[] size : IMAGE_SIZES) {
+                mImage = createImage(size[0], size[1]);
+                for (Case benchmarkCase : createCases())
+                    measure(benchmarkCase, size[0] + "x" + size[1]);
+                mImage = null;
+            }
+        } finally {
+            mExecutor.shutdown();
+        }
+    }
+
+    private Case[] createCases() {
+        return new Case[] {
+            new Case("transaction/small-invalidate") {
+                private StripLayer mLayer;
+
+                @Override
+                public void setUp() {
+                    mLayer = createStripLayer();
+                }
+
+                @Override
+                public void run() {
+                    TiledLayer.Transaction transaction = mLayer.beginTransaction();
+                    transaction.invalidate(new Rect(100, 100, 120, 120));
+                    endTransaction(mLayer, transaction);
+                }
+
+                @Override
+                public void tearDown() {
+                    mLayer.dispose();
+                    mLayer = null;
+                }
+            },
+            new Case("transaction/full-invalidate") {
+                private StripLayer mLayer;
+
+                @Override
+                public void setUp() {
+                    mLayer = createStripLayer();
+                }
+
+                @Override
+                public void run() {
+                    TiledLayer.Transaction transaction = mLayer.beginTransaction();
+                    transaction.invalidate();
+                    endTransaction(mLayer, transaction);
+                }
+
+                @Override
+                public void tearDown() {
+                    mLayer.dispose();
+                    mLayer = null;
+                }
+            },
+            new Case("transaction/full-invalidate-tiled") {
+                private TileLayer mLayer;
+
+                @Override
+                public void setUp() {
+                    mLayer = new TileLayer(mImage, mExecutor);
+                }
+
+                @Override
+                public void run() {
+                    TiledLayer.Transaction transaction = mLayer.beginTransaction();
+                    transaction.invalidate();
+                    endTransaction(mLayer, transaction);
+                }
+
+                @Override
+                public void tearDown() {
+                    mLayer.dispose();
+                    mLayer = null;
+                }
+            },
+            new Case("recreateTiles") {
+                private StripLayer mLayer;
+
+                @Override
+                public void setUp() {
+                    mLayer = createStripLayer();
+                }
+
+                @Override
+                public void run() {
+                    mLayer.recreateTiles();
+                }
+
+                @Override
+                public void tearDown() {
+                    mLayer.dispose();
+                    mLayer = null;
+                }
+            },
+            new Case("buffer-slice") {
+                private int mBytesPerRow;
+
+                @Override
+                public void setUp() {
+                    mBytesPerRow = mImage.getSize().width * 4;
+                }
+
+                @Override
+                public void run() {
+                    // What updateTextureImage() does before every upload.
+                    Buffer viewBuffer = mImage.getBuffer().slice();
+                    viewBuffer.position(mBytesPerRow * (mImage.getSize().height / 2));
+                }
+            },
+            new ConversionCase("convert/rgba-to-rgb565", PixelConverter.RGBA_TO_RGB565),
+            new ConversionCase("convert/bgra-to-rgba", PixelConverter.BGRA_TO_RGBA),
+            new Case("transaction/full-invalidate-rgb565") {
+                private StripLayer mLayer;
+
+                @Override
+                public void setUp() {
+                    mLayer = createStripLayer();
+                    mLayer.setPixelConverter(PixelConverter.RGBA_TO_RGB565);
+                    // The empty transaction is applied after the tiles are recreated.
+                    endTransaction(mLayer, mLayer.beginTransaction());
+                }
+
+                @Override
+                public void run() {
+                    TiledLayer.Transaction transaction = mLayer.beginTransaction();
+                    transaction.invalidate();
+                    endTransaction(mLayer, transaction);
+                }
+
+                @Override
+                public void tearDown() {
+                    mLayer.dispose();
+                    mLayer = null;
+                }
+            },
+            new Case("executor/hand-off") {
+                @Override
+                public void run() {
+                    drainExecutor();
+                }
+            },
+        };
+    }
+
+    /** Converts the whole image, as an upload of every tile would. */
+    private class ConversionCase extends Case {
+        private final PixelConverter mConverter;
+        private ByteBuffer mDest;
+
+        public ConversionCase(String name, PixelConverter converter) {
+            super(name);
+            mConverter = converter;
+        }
+
+        @Override
+        public void setUp() {
+            IntSize size = mImage.getSize();
+            mDest = ByteBuffer.allocateDirect(size.width * size.height *
+                CairoUtils.bitsPerPixelForCairoFormat(mConverter.getTargetFormat()) / 8);
+        }
+
+        @Override
+        public void run() {
+            IntSize size = mImage.getSize();
+            mDest.clear();
+            mConverter.convert(mImage.getBuffer(), mImage.getStride(), size.width, size.height,
+                               mDest);
+        }
+
+        @Override
+        public void tearDown() {
+            mDest = null;
+        }
+    }
+
+    private StripLayer createStripLayer() {
+        return new StripLayer(mImage, mExecutor);
+    }
+
+    /** Waits until everything submitted to the executor so far has run. */
+    private void drainExecutor() {
+        runOnExecutor(new Runnable() {
+            @Override
+            public void run() {}
+        });
+    }
+
+    /** Runs the given task on the executor's GL thread and waits for it. */
+    private void runOnExecutor(Runnable task) {
+        try {
+            mExecutor.submit(task).get();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Ends the given transaction and waits until its uploads have been swapped in. Waiting for
+     * the executor to drain wouldn't do, since low-priority uploads may still be queued behind.
+     */
+    private void endTransaction(TiledLayer layer, TiledLayer.Transaction transaction) {
+        try {
+            layer.endTransaction(transaction).get();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void measure(Case benchmarkCase, String sizeLabel) {
+        benchmarkCase.setUp();
+        drainExecutor();
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++)
+            runIteration(benchmarkCase);
+
+        double total = 0.0, min = Double.MAX_VALUE, max = 0.0;
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            double nanosPerOp = runIteration(benchmarkCase);
+            total += nanosPerOp;
+            min = Math.min(min, nanosPerOp);
+            max = Math.max(max, nanosPerOp);
+        }
+
+        mOut.println(String.format("%-36s %10s %14.1f ns/op (min %.1f, max %.1f)",
+                                   benchmarkCase.name, sizeLabel, total / MEASURED_ITERATIONS,
+                                   min, max));
+
+        benchmarkCase.tearDown();
+        drainExecutor();
+        runOnExecutor(new Runnable() {
+            @Override
+            public void run() {
+                TexturePool.getInstance().trim();
+            }
+        });
+        // The backend records every upload, so don't let the record grow across cases.
+        mBackend.resetCounters();
+    }
+
+    /** Runs the case repeatedly for at least the minimum time and returns nanoseconds per op. */
+    private static double runIteration(Case benchmarkCase) {
+        long start = System.nanoTime(), elapsed;
+        long ops = 0;
+        do {
+            benchmarkCase.run();
+            ops++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < MIN_ITERATION_TIME);
+        return (double)elapsed / ops;
+    }
+
+    private static CairoImage createImage(final int width, final int height) {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(width * height * 4);
+        final IntSize size = new IntSize(width, height);
+        return new CairoImage() {
+            @Override
+            public ByteBuffer getBuffer() { return buffer; }
+            @Override
+            public IntSize getSize() { return size; }
+            @Override
+            public int getFormat() { return CairoImage.FORMAT_ARGB32; }
+        };
+    }
+
+    private static abstract class Case {
+        public final String name;
+
+        public Case(String aName) {
+            name = aName;
+        }
+
+        public void setUp() {}
+        public abstract void run();
+        /** Releases what setUp() created, so that it doesn't weigh on the cases after it. */
+        public void tearDown() {}
+    }
+}
@@ -44,6 +44,7 @@
 #include <android/log.h>
 #include <jni.h>
 #include <pthread.h>
+#include <string.h>
 #include <map>
 
 namespace {
@@ -53,6 +54,15 @@ std::map<int,EGLImageKHR> sImageRefs;
 int sNextImageRefID = 0;
 pthread_mutex_t sImageRefsLock = PTHREAD_MUTEX_INITIALIZER;
 
+/* A list of EGL fence syncs, along with the displays they were created on. */
+struct FenceSync {
+    EGLDisplay display;
+    EGLSyncKHR sync;
+};
+std::map<int,FenceSync> sFenceRefs;
+int sNextFenceRefID = 1;    /* Zero means "no fence". */
+pthread_mutex_t sFenceRefsLock = PTHREAD_MUTEX_INITIALIZER;
+
 const EGLint IMAGE_ATTRIBUTES[] = {
     EGL_GL_TEXTURE_LEVEL_KHR, 0,            /* mip-map level */
     //EGL_IMAGE_PRESERVED_KHR, EGL_FALSE,
@@ -115,5 +125,92 @@ Java_org_mozilla_gecko_gfx_AndroidGLExtensions_setImageTargetTexture(JNIEnv *env
     glEGLImageTargetTexture2DOES(GL_TEXTURE_2D, image);
 }
 
+/*
+ * Returns true if the current display supports EGL_KHR_fence_sync.
+ */
+extern "C" jboolean
+Java_org_mozilla_gecko_gfx_AndroidGLExtensions_isFenceSyncSupported(JNIEnv *env, jclass clazz)
+{
+    const char *extensions = eglQueryString(eglGetCurrentDisplay(), EGL_EXTENSIONS);
+    if (!extensions)
+        return JNI_FALSE;
+    return strstr(extensions, "EGL_KHR_fence_sync") ? JNI_TRUE : JNI_FALSE;
+}
+
+/*
+ * Inserts a fence into the current context's command stream and returns a reference to it, or
+ * zero if the fence couldn't be created. The fence must be later destroyed using
+ * destroyFenceSync().
+ *
+ * This function is thread-safe.
+ */
+extern "C" jint
+Java_org_mozilla_gecko_gfx_AndroidGLExtensions_createFenceSync(JNIEnv *env, jclass clazz)
+{
+    EGLDisplay eglDisplay = eglGetCurrentDisplay();
+    EGLSyncKHR sync = eglCreateSyncKHR(eglDisplay, EGL_SYNC_FENCE_KHR, NULL);
+    if (sync == EGL_NO_SYNC_KHR) {
+        __android_log_print(ANDROID_LOG_ERROR, "TATU", "### eglCreateSyncKHR error: %x",
+                            (unsigned)eglGetError());
+        return 0;
+    }
+
+    FenceSync fence = { eglDisplay, sync };
+    pthread_mutex_lock(&sFenceRefsLock);
+    int id = sNextFenceRefID++;
+    sFenceRefs[id] = fence;
+    pthread_mutex_unlock(&sFenceRefsLock);
+
+    return id;
+}
+
+/*
+ * Waits up to the given number of nanoseconds (or forever, if negative) for the given fence to
+ * be signaled, flushing the creating context first. Returns true if the fence was signaled.
+ *
+ * This function is thread-safe.
+ */
+extern "C" jboolean
+Java_org_mozilla_gecko_gfx_AndroidGLExtensions_clientWaitFenceSync(JNIEnv *env, jclass clazz,
+                                                                   jint fenceID,
+                                                                   jlong timeoutNanos)
+{
+    pthread_mutex_lock(&sFenceRefsLock);
+    std::map<int,FenceSync>::iterator it = sFenceRefs.find(fenceID);
+    bool found = it != sFenceRefs.end();
+    FenceSync fence = found ? it->second : FenceSync();
+    pthread_mutex_unlock(&sFenceRefsLock);
+
+    if (!found)
+        return JNI_TRUE;    /* Already destroyed, so there's nothing to wait for. */
+
+    EGLTimeKHR timeout = (timeoutNanos < 0) ? EGL_FOREVER_KHR : (EGLTimeKHR)timeoutNanos;
+    EGLint result = eglClientWaitSyncKHR(fence.display, fence.sync,
+                                         EGL_SYNC_FLUSH_COMMANDS_BIT_KHR, timeout);
+    return (result == EGL_CONDITION_SATISFIED_KHR) ? JNI_TRUE : JNI_FALSE;
+}
+
+/*
+ * Destroys the given fence.
+ *
+ * This function is thread-safe.
+ */
+extern "C" void
+Java_org_mozilla_gecko_gfx_AndroidGLExtensions_destroyFenceSync(JNIEnv *env, jclass clazz,
+                                                                jint fenceID)
+{
+    pthread_mutex_lock(&sFenceRefsLock);
+    std::map<int,FenceSync>::iterator it = sFenceRefs.find(fenceID);
+    if (it == sFenceRefs.end()) {
+        pthread_mutex_unlock(&sFenceRefsLock);
+        return;
+    }
+    FenceSync fence = it->second;
+    sFenceRefs.erase(it);
+    pthread_mutex_unlock(&sFenceRefsLock);
+
+    eglDestroySyncKHR(fence.display, fence.sync);
+}
+
 };
 
@@ -0,0 +1,116 @@
+/* -*- Mode: c++; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Mozilla Android code.
+ *
+ * The Initial Developer of the Original Code is Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Patrick Walton <pcwalton@mozilla.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.gecko.gfx;
+
+import android.opengl.GLES11;
+import android.opengl.GLES11Ext;
+import java.nio.Buffer;
+
+/** The GL backend that calls through to Android's OpenGL ES 1.1 bindings. */
+public class AndroidGLBackend implements GLBackend {
+    @Override
+    public void glGenTextures(int n, int[] textures, int offset) {
+        GLES11.glGenTextures(n, textures, offset);
+    }
+
+    @Override
+    public void glDeleteTextures(int n, int[] textures, int offset) {
+        GLES11.glDeleteTextures(n, textures, offset);
+    }
+
+    @Override
+    public void glBindTexture(int target, int texture) {
+        GLES11.glBindTexture(target, texture);
+    }
+
+    @Override
+    public void glTexParameterf(int target, int pname, float param) {
+        GLES11.glTexParameterf(target, pname, param);
+    }
+
+    @Override
+    public void glTexParameteriv(int target, int pname, int[] params, int offset) {
+        GLES11.glTexParameteriv(target, pname, params, offset);
+    }
+
+    @Override
+    public void glTexImage2D(int target, int level, int internalFormat, int width, int height,
+                             int border, int format, int type, Buffer pixels) {
+        GLES11.glTexImage2D(target, level, internalFormat, width, height, border, format, type,
+                            pixels);
+    }
+
+    @Override
+    public void glPixelStorei(int pname, int param) {
+        GLES11.glPixelStorei(pname, param);
+    }
+
+    @Override
+    public void glTexSubImage2D(int target, int level, int xOffset, int yOffset, int width,
+                                int height, int format, int type, Buffer pixels) {
+        GLES11.glTexSubImage2D(target, level, xOffset, yOffset, width, height, format, type,
+                               pixels);
+    }
+
+    @Override
+    public void glCompressedTexImage2D(int target, int level, int internalFormat, int width,
+                                       int height, int border, int imageSize, Buffer data) {
+        GLES11.glCompressedTexImage2D(target, level, internalFormat, width, height, border,
+                                      imageSize, data);
+    }
+
+    @Override
+    public void glDrawTexfOES(float x, float y, float z, float width, float height) {
+        GLES11Ext.glDrawTexfOES(x, y, z, width, height);
+    }
+
+    @Override
+    public void glFlush() {
+        GLES11.glFlush();
+    }
+
+    @Override
+    public void glFinish() {
+        GLES11.glFinish();
+    }
+
+    @Override
+    public String glGetString(int name) {
+        return GLES11.glGetString(name);
+    }
+}
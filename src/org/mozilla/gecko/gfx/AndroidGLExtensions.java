@@ -56,5 +56,31 @@ public class AndroidGLExtensions {
      * This function is thread-safe.
      */
     public static native void setImageTargetTexture(int eglImageID);
+
+    /** Returns true if the current EGL display supports EGL_KHR_fence_sync. */
+    public static native boolean isFenceSyncSupported();
+
+    /**
+     * Inserts a fence into the current context's command stream and returns a reference to it,
+     * or zero on failure. The fence must be later destroyed using destroyFenceSync().
+     *
+     * This function is thread-safe.
+     */
+    public static native int createFenceSync();
+
+    /**
+     * Waits up to the given number of nanoseconds, or forever if negative, for the given fence
+     * to be signaled. Returns true if it was.
+     *
+     * This function is thread-safe.
+     */
+    public static native boolean clientWaitFenceSync(int fenceID, long timeoutNanos);
+
+    /**
+     * Destroys the given fence.
+     *
+     * This function is thread-safe.
+     */
+    public static native void destroyFenceSync(int fenceID);
 }
 
@@ -37,58 +37,63 @@
 
 package org.mozilla.gecko.gfx;
 
-import android.opengl.GLES11;
 import android.os.Process;
-import javax.microedition.khronos.egl.EGL10;
 import javax.microedition.khronos.egl.EGLConfig;
-import javax.microedition.khronos.egl.EGLContext;
-import javax.microedition.khronos.egl.EGLDisplay;
-import javax.microedition.khronos.egl.EGLSurface;
-import javax.microedition.khronos.opengles.GL10;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 public class AsyncGLExecutorFactory {
+    // How many keyed tasks, such as uploads, may be queued on each executor before whoever is
+    // submitting them has to wait.
+    private static final int MAX_QUEUED_TASKS = 64;
+
     private AsyncGLExecutorFactory() {
         // Don't call this. This class contains only static methods.
     }
 
     public static ExecutorService createAsyncGLExecutor(EGLConfig config) {
-        ExecutorService executor = Executors.newSingleThreadExecutor();
-        EGLContext parentContext = ((EGL10)EGLContext.getEGL()).eglGetCurrentContext();
-        performEGLInitialization(executor, parentContext, config);
-        return executor;
+        Object parentContext = GLBackends.getEGLBackend().getCurrentContext();
+        return new GLTaskExecutor(MAX_QUEUED_TASKS,
+                                  createEGLInitialization(parentContext, config));
+    }
+
+    /**
+     * Creates a pool of the given number of asynchronous GL executors, each with its own context
+     * sharing textures with the current one.
+     */
+    public static AsyncGLExecutorPool createAsyncGLExecutorPool(EGLConfig config,
+                                                                int workerCount) {
+        return createAsyncGLExecutorPool(config, workerCount, null);
+    }
+
+    /**
+     * Creates a pool of asynchronous GL executors whose uploads are spread across frames by the
+     * given scheduler. The scheduler must be ticked by the compositor's frame clock.
+     */
+    public static AsyncGLExecutorPool createAsyncGLExecutorPool(EGLConfig config,
+                                                                int workerCount,
+                                                                UploadScheduler scheduler) {
+        Object parentContext = GLBackends.getEGLBackend().getCurrentContext();
+        ExecutorService[] executors = new ExecutorService[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            executors[i] = new GLTaskExecutor(MAX_QUEUED_TASKS,
+                                              createEGLInitialization(parentContext, config));
+        }
+        return new AsyncGLExecutorPool(scheduler, executors);
     }
 
-    private static void performEGLInitialization(ExecutorService executor,
-                                                 final EGLContext parentContext,
-                                                 final EGLConfig config) {
-        executor.submit(new Runnable() {
+    /**
+     * Returns the setup for an executor's thread, which must run before any task: the primary
+     * worker may hand a secondary one high-priority uploads before it would get to a queued
+     * initialization task.
+     */
+    private static Runnable createEGLInitialization(final Object parentContext,
+                                                    final EGLConfig config) {
+        return new Runnable() {
             @Override
             public void run() {
                 Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
-
-                EGL10 egl = (EGL10)EGLContext.getEGL();
-                EGLDisplay display = egl.eglGetDisplay(EGL10.EGL_DEFAULT_DISPLAY);
-                EGLContext context = egl.eglCreateContext(display, config, parentContext, null);
-                if (context == EGL10.EGL_NO_CONTEXT)
-                    throw new RuntimeException("eglCreateContext() failed");
-
-                // Create an unused pbuffer surface.
-                int[] surfaceAttributes = new int[] {   
-                    EGL10.EGL_WIDTH, 16,
-                    EGL10.EGL_HEIGHT, 16,
-                    EGL10.EGL_NONE
-                };
-
-                EGLSurface surface = egl.eglCreatePbufferSurface(display, config,
-                                                                 surfaceAttributes);
-                if (surface == EGL10.EGL_NO_SURFACE)
-                    throw new RuntimeException("eglCreatePbufferSurface() failed");
-
-                egl.eglMakeCurrent(display, surface, surface, context);
+                GLBackends.getEGLBackend().makeSharedContextCurrent(parentContext, config);
             }
-        });
+        };
     }
 }
-
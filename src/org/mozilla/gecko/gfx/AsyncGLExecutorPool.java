@@ -0,0 +1,88 @@
+/* -*- Mode: c++; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Mozilla Android code.
+ *
+ * The Initial Developer of the Original Code is Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Patrick Walton <pcwalton@mozilla.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.gecko.gfx;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * A set of asynchronous GL executors, each running on its own thread with its own shared context,
+ * so that uploads can proceed in parallel on drivers that support it.
+ *
+ * Work is assigned to workers by key: the same key always maps to the same worker, so two tasks
+ * for the same key never run concurrently.
+ */
+public class AsyncGLExecutorPool {
+    private final ExecutorService[] mExecutors;
+    private final UploadScheduler mUploadScheduler;
+
+    public AsyncGLExecutorPool(ExecutorService... executors) {
+        this(null, executors);
+    }
+
+    /** Creates a pool whose uploads are paced by the given scheduler, if it isn't null. */
+    public AsyncGLExecutorPool(UploadScheduler uploadScheduler, ExecutorService... executors) {
+        if (executors.length == 0)
+            throw new IllegalArgumentException("An executor pool needs at least one executor");
+        mExecutors = executors.clone();
+        mUploadScheduler = uploadScheduler;
+    }
+
+    public int getWorkerCount() {
+        return mExecutors.length;
+    }
+
+    /** Returns the worker responsible for the given key. */
+    public ExecutorService getExecutor(int key) {
+        return mExecutors[(key & Integer.MAX_VALUE) % mExecutors.length];
+    }
+
+    /** Returns the worker used for work that isn't tied to any particular key. */
+    public ExecutorService getPrimaryExecutor() {
+        return mExecutors[0];
+    }
+
+    /** Returns the scheduler that uploads must wait for, or null if they go ahead at once. */
+    public UploadScheduler getUploadScheduler() {
+        return mUploadScheduler;
+    }
+
+    public void shutdown() {
+        for (ExecutorService executor : mExecutors)
+            executor.shutdown();
+    }
+}
@@ -39,12 +39,8 @@ package org.mozilla.gecko.gfx;
 
 import android.opengl.GLES11;
 import android.os.Process;
-import javax.microedition.khronos.egl.EGL10;
 import javax.microedition.khronos.egl.EGLConfig;
-import javax.microedition.khronos.egl.EGLContext;
-import javax.microedition.khronos.egl.EGLDisplay;
-import javax.microedition.khronos.egl.EGLSurface;
-import javax.microedition.khronos.opengles.GL10;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -55,49 +51,58 @@ public class AsyncTextureUploader {
     public AsyncTextureUploader(EGLConfig config) {
         mExecutor = Executors.newSingleThreadExecutor();
 
-        EGLContext parentContext = ((EGL10)EGLContext.getEGL()).eglGetCurrentContext();
+        Object parentContext = GLBackends.getEGLBackend().getCurrentContext();
         initEGL(parentContext, config);
     }
 
-    private void initEGL(final EGLContext parentContext, final EGLConfig config) {
+    private void initEGL(final Object parentContext, final EGLConfig config) {
         mExecutor.submit(new Runnable() {
             @Override
             public void run() {
                 Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                GLBackends.getEGLBackend().makeSharedContextCurrent(parentContext, config);
+            }
+        });
+    }
 
-                EGL10 egl = (EGL10)EGLContext.getEGL();
-                EGLDisplay display = egl.eglGetDisplay(EGL10.EGL_DEFAULT_DISPLAY);
-                EGLContext context = egl.eglCreateContext(display, config, parentContext, null);
-                if (context == EGL10.EGL_NO_CONTEXT)
-                    throw new RuntimeException("eglCreateContext() failed");
-
-                // Create an unused pbuffer surface.
-                int[] surfaceAttributes = new int[] {   
-                    EGL10.EGL_WIDTH, 16,
-                    EGL10.EGL_HEIGHT, 16,
-                    EGL10.EGL_NONE
-                };
-
-                EGLSurface surface = egl.eglCreatePbufferSurface(display, config,
-                                                                 surfaceAttributes);
-                if (surface == EGL10.EGL_NO_SURFACE)
-                    throw new RuntimeException("eglCreatePbufferSurface() failed");
-
-                egl.eglMakeCurrent(display, surface, surface, context);
+    /**
+     * Asynchronously updates the given EGL texture. The future yields a fence that is signaled
+     * once the GPU has finished the update; the caller must wait on it before using the texture
+     * and dispose of it afterward.
+     */
+    public Future<GLFence> updateTexture(final int textureID, final Runnable updateTexture) {
+        return mExecutor.submit(new Callable<GLFence>() {
+            @Override
+            public GLFence call() {
+                GLBackends.getGLBackend().glBindTexture(GLES11.GL_TEXTURE_2D, textureID);
+                updateTexture.run();
+                return GLFence.insert();    // This actually updates the texture.
             }
         });
     }
 
-    /** Asynchronously updates the given EGL texture. */
-    public Future<?> updateTexture(final int textureID, final Runnable updateTexture) {
-        return mExecutor.submit(new Runnable() {
+    /**
+     * Asynchronously updates the given EGL texture, and completes the returned future with its ID
+     * once the GPU has finished the update. The wait happens on the upload thread, so callers can
+     * attach a callback with UploadFuture.whenDone() rather than block.
+     */
+    public UploadFuture<Integer> uploadTexture(final int textureID, final Runnable updateTexture) {
+        final UploadFuture<Integer> future = new UploadFuture<Integer>();
+        mExecutor.execute(new Runnable() {
             @Override
             public void run() {
-                GLES11.glBindTexture(GLES11.GL_TEXTURE_2D, textureID);
-                updateTexture.run();
-                GLES11.glFinish();  // This actually updates the texture.
+                try {
+                    GLBackends.getGLBackend().glBindTexture(GLES11.GL_TEXTURE_2D, textureID);
+                    updateTexture.run();
+                    GLFence fence = GLFence.insert();
+                    fence.waitForCompletion();
+                    fence.dispose();
+                    future.complete(textureID);
+                } catch (RuntimeException e) {
+                    future.fail(e);
+                }
             }
         });
+        return future;
     }
 }
-
@@ -0,0 +1,275 @@
+/* -*- Mode: c++; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Mozilla Android code.
+ *
+ * The Initial Developer of the Original Code is Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Patrick Walton <pcwalton@mozilla.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.gecko.gfx;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Shrinks images by an integer factor, averaging each square block of pixels into one, for
+ * reduced-resolution textures of zoomed-out content. Blocks at the right and bottom edges may be
+ * partial, in which case only the pixels that exist are averaged.
+ *
+ * Large images are split into bands of output rows that are filtered in parallel on a shared
+ * pool, with the calling thread taking the first band.
+ */
+public final class BoxFilter {
+    // The fewest output rows that are worth handing to another thread.
+    private static final int MIN_BAND_HEIGHT = 16;
+    private static final boolean LITTLE_ENDIAN =
+        ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+
+    private static final ThreadLocal<byte[]> sRow = new ThreadLocal<byte[]>();
+    private static final ThreadLocal<int[]> sSums = new ThreadLocal<int[]>();
+    // One thread for each processor besides the caller's. Created lazily.
+    private static ExecutorService sExecutor;
+    private static final int sParallelism = Runtime.getRuntime().availableProcessors();
+
+    private BoxFilter() {}
+
+    /** Returns the number of pixels that the given number shrinks to. */
+    public static int getReducedLength(int length, int factor) {
+        return (length + factor - 1) / factor;
+    }
+
+    public static boolean isFormatSupported(int cairoFormat) {
+        switch (cairoFormat) {
+        case CairoImage.FORMAT_A8:
+        case CairoImage.FORMAT_RGB16_565:
+        case CairoImage.FORMAT_RGB24:
+        case CairoImage.FORMAT_ARGB32:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Shrinks the block of pixels of the given size that starts at the source's position, with
+     * rows the given number of bytes apart, into tightly-packed pixels of the same format at the
+     * destination's position. Advances the destination's position past them; the source is left
+     * alone.
+     */
+    public static void downsample(ByteBuffer source, int stride, int width, int height,
+                                  int factor, int cairoFormat, ByteBuffer dest) {
+        if (!isFormatSupported(cairoFormat))
+            throw new IllegalArgumentException("Unsupported Cairo format");
+        if (factor < 1)
+            throw new IllegalArgumentException("Bad factor: " + factor);
+
+        int bytesPerPixel = CairoUtils.bitsPerPixelForCairoFormat(cairoFormat) / 8;
+        int destWidth = getReducedLength(width, factor);
+        int destHeight = getReducedLength(height, factor);
+
+        int bandCount = Math.max(1, Math.min(sParallelism, destHeight / MIN_BAND_HEIGHT));
+        int bandHeight = getReducedLength(destHeight, bandCount);
+        ArrayList<Future<Void>> bands = null;
+        for (int top = bandHeight; top < destHeight; top += bandHeight) {
+            if (bands == null)
+                bands = new ArrayList<Future<Void>>();
+            Band band = new Band(source, stride, width, height, factor, cairoFormat, dest, top,
+                                 Math.min(top + bandHeight, destHeight));
+            bands.add(getExecutor().submit(band));
+        }
+
+        filterRows(source.duplicate(), stride, width, height, factor, cairoFormat,
+                   dest.duplicate(), 0, Math.min(bandHeight, destHeight));
+
+        if (bands != null) {
+            for (Future<Void> band : bands) {
+                try {
+                    band.get();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                } catch (ExecutionException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+
+        dest.position(dest.position() + destWidth * destHeight * bytesPerPixel);
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = Executors.newFixedThreadPool(sParallelism - 1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "BoxFilter");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sExecutor;
+    }
+
+    /** A range of output rows, filtered on the pool. */
+    private static class Band implements Callable<Void> {
+        private final ByteBuffer mSource, mDest;
+        private final int mStride, mWidth, mHeight, mFactor, mFormat, mFirstRow, mEndRow;
+
+        public Band(ByteBuffer source, int stride, int width, int height, int factor, int format,
+                    ByteBuffer dest, int firstRow, int endRow) {
+            // Each thread gets its own positions.
+            mSource = source.duplicate();
+            mDest = dest.duplicate();
+            mStride = stride;
+            mWidth = width;
+            mHeight = height;
+            mFactor = factor;
+            mFormat = format;
+            mFirstRow = firstRow;
+            mEndRow = endRow;
+        }
+
+        @Override
+        public Void call() {
+            filterRows(mSource, mStride, mWidth, mHeight, mFactor, mFormat, mDest, mFirstRow,
+                       mEndRow);
+            return null;
+        }
+    }
+
+    /**
+     * Produces the output rows in the given range. The buffers' positions mark the start of the
+     * images, and are moved around freely.
+     */
+    private static void filterRows(ByteBuffer source, int stride, int width, int height,
+                                   int factor, int format, ByteBuffer dest, int firstRow,
+                                   int endRow) {
+        boolean rgb565 = format == CairoImage.FORMAT_RGB16_565;
+        int bytesPerPixel = CairoUtils.bitsPerPixelForCairoFormat(format) / 8;
+        // 565 pixels are averaged as separate red, green and blue channels.
+        int channels = rgb565 ? 3 : bytesPerPixel;
+        int destWidth = getReducedLength(width, factor);
+        int destRowBytes = destWidth * bytesPerPixel;
+
+        int sourceStart = source.position(), destStart = dest.position();
+        int[] sums = getSums(destWidth * channels);
+        byte[] row = getRow(width * bytesPerPixel);
+
+        for (int destY = firstRow; destY < endRow; destY++) {
+            Arrays.fill(sums, 0, destWidth * channels, 0);
+            int top = destY * factor, bottom = Math.min(top + factor, height);
+            for (int y = top; y < bottom; y++) {
+                source.position(sourceStart + y * stride);
+                source.get(row, 0, width * bytesPerPixel);
+                if (rgb565)
+                    accumulate565(row, width, factor, sums);
+                else
+                    accumulate(row, width, bytesPerPixel, factor, sums);
+            }
+
+            // Average the sums, writing the output row over the start of the input row.
+            int rows = bottom - top;
+            for (int destX = 0; destX < destWidth; destX++) {
+                int count = Math.min(factor, width - destX * factor) * rows;
+                int sumIndex = destX * channels;
+                if (rgb565) {
+                    int r = (sums[sumIndex] + count / 2) / count;
+                    int g = (sums[sumIndex + 1] + count / 2) / count;
+                    int b = (sums[sumIndex + 2] + count / 2) / count;
+                    int pixel = (r << 11) | (g << 5) | b;
+                    int i = destX * 2;
+                    row[i + (LITTLE_ENDIAN ? 0 : 1)] = (byte)pixel;
+                    row[i + (LITTLE_ENDIAN ? 1 : 0)] = (byte)(pixel >> 8);
+                } else {
+                    for (int c = 0; c < channels; c++)
+                        row[sumIndex + c] = (byte)((sums[sumIndex + c] + count / 2) / count);
+                }
+            }
+
+            dest.position(destStart + destY * destRowBytes);
+            dest.put(row, 0, destRowBytes);
+        }
+    }
+
+    /** Adds each channel of a row of byte-per-channel pixels to the sums of their blocks. */
+    private static void accumulate(byte[] row, int width, int channels, int factor, int[] sums) {
+        int i = 0, sumIndex = 0;
+        for (int x = 0; x < width; sumIndex += channels) {
+            int blockEnd = Math.min(x + factor, width);
+            for (; x < blockEnd; x++) {
+                for (int c = 0; c < channels; c++)
+                    sums[sumIndex + c] += row[i++] & 0xff;
+            }
+        }
+    }
+
+    /** Adds the channels of a row of native-endian 565 pixels to the sums of their blocks. */
+    private static void accumulate565(byte[] row, int width, int factor, int[] sums) {
+        int i = 0, sumIndex = 0;
+        for (int x = 0; x < width; sumIndex += 3) {
+            int blockEnd = Math.min(x + factor, width);
+            for (; x < blockEnd; x++, i += 2) {
+                int pixel = LITTLE_ENDIAN ? (row[i] & 0xff) | ((row[i + 1] & 0xff) << 8) :
+                                            ((row[i] & 0xff) << 8) | (row[i + 1] & 0xff);
+                sums[sumIndex] += pixel >> 11;
+                sums[sumIndex + 1] += (pixel >> 5) & 0x3f;
+                sums[sumIndex + 2] += pixel & 0x1f;
+            }
+        }
+    }
+
+    private static byte[] getRow(int length) {
+        byte[] row = sRow.get();
+        if (row == null || row.length < length) {
+            row = new byte[length];
+            sRow.set(row);
+        }
+        return row;
+    }
+
+    private static int[] getSums(int length) {
+        int[] sums = sSums.get();
+        if (sums == null || sums.length < length) {
+            sums = new int[length];
+            sSums.set(sums);
+        }
+        return sums;
+    }
+}
@@ -57,8 +57,10 @@ public class CairoGLInfo {
             internalFormat = format = GL10.GL_RGB; type = GL10.GL_UNSIGNED_SHORT_5_6_5;
             break;
         case CairoImage.FORMAT_A8:
+            internalFormat = format = GL10.GL_ALPHA; type = GL10.GL_UNSIGNED_BYTE;
+            break;
         case CairoImage.FORMAT_A1:
-            throw new RuntimeException("Cairo FORMAT_A1 and FORMAT_A8 unsupported");
+            throw new RuntimeException("Cairo FORMAT_A1 unsupported");
         default:
             throw new RuntimeException("Unknown Cairo format");
         }
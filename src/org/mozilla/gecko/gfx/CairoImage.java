@@ -37,10 +37,12 @@
 
 package org.mozilla.gecko.gfx;
 
+import android.graphics.Rect;
 import java.nio.ByteBuffer;
 
 /*
- * A bitmap with pixel data in one of the formats that Cairo understands.
+ * A bitmap with pixel data in one of the formats that Cairo understands. The buffer starts at
+ * the top-left pixel, and rows are getStride() bytes apart.
  */
 public abstract class CairoImage {
     public abstract ByteBuffer getBuffer();
@@ -48,11 +50,65 @@ public abstract class CairoImage {
     public abstract IntSize getSize();
     public abstract int getFormat();
 
+    /**
+     * Returns the number of bytes between the starts of consecutive rows. Images with padded
+     * rows override this; by default, rows are tightly packed.
+     */
+    public int getStride() {
+        return getSize().width * CairoUtils.bitsPerPixelForCairoFormat(getFormat()) / 8;
+    }
+
+    /** Returns a view of the given rect of this image, sharing its pixels and stride. */
+    public CairoImage getSubImage(Rect rect) {
+        IntSize size = getSize();
+        if (rect.left < 0 || rect.top < 0 || rect.right > size.width ||
+                rect.bottom > size.height || rect.isEmpty()) {
+            throw new IllegalArgumentException("Sub-image out of bounds");
+        }
+        return new SubImage(this, rect);
+    }
+
     public static final int FORMAT_INVALID = -1;
     public static final int FORMAT_ARGB32 = 0;
     public static final int FORMAT_RGB24 = 1;
     public static final int FORMAT_A8 = 2;
     public static final int FORMAT_A1 = 3;
     public static final int FORMAT_RGB16_565 = 4;
+
+    private static class SubImage extends CairoImage {
+        private final CairoImage mImage;
+        private final IntSize mSize;
+        private final int mOffset;
+
+        public SubImage(CairoImage image, Rect rect) {
+            mImage = image;
+            mSize = new IntSize(rect.width(), rect.height());
+            int bytesPerPixel = CairoUtils.bitsPerPixelForCairoFormat(image.getFormat()) / 8;
+            mOffset = rect.top * image.getStride() + rect.left * bytesPerPixel;
+        }
+
+        @Override
+        public ByteBuffer getBuffer() {
+            ByteBuffer buffer = mImage.getBuffer().duplicate();
+            buffer.clear();
+            buffer.position(mOffset);
+            return buffer.slice();
+        }
+
+        @Override
+        public IntSize getSize() {
+            return mSize;
+        }
+
+        @Override
+        public int getFormat() {
+            return mImage.getFormat();
+        }
+
+        @Override
+        public int getStride() {
+            return mImage.getStride();
+        }
+    }
 }
 
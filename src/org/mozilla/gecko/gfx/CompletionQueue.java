@@ -0,0 +1,72 @@
+/* -*- Mode: c++; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Mozilla Android code.
+ *
+ * The Initial Developer of the Original Code is Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Patrick Walton <pcwalton@mozilla.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.gecko.gfx;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Carries callbacks from upload threads to the compositor. Any thread may post a callback
+ * without locking; the compositor runs everything that has been posted by calling drain() once
+ * per frame, so it hears about finished uploads on the next frame without ever blocking.
+ */
+public class CompletionQueue {
+    private final ConcurrentLinkedQueue<Runnable> mCallbacks;
+
+    public CompletionQueue() {
+        mCallbacks = new ConcurrentLinkedQueue<Runnable>();
+    }
+
+    /** Schedules the given callback to run at the next drain(). Never blocks. */
+    public void post(Runnable callback) {
+        mCallbacks.offer(callback);
+    }
+
+    /**
+     * Runs and forgets the posted callbacks, including any posted while draining, and returns how
+     * many ran. Doesn't allocate when there are none.
+     */
+    public int drain() {
+        int count = 0;
+        Runnable callback;
+        while ((callback = mCallbacks.poll()) != null) {
+            callback.run();
+            count++;
+        }
+        return count;
+    }
+}
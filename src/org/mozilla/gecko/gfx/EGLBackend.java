@@ -0,0 +1,71 @@
+/* -*- Mode: c++; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Mozilla Android code.
+ *
+ * The Initial Developer of the Original Code is Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Patrick Walton <pcwalton@mozilla.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.gecko.gfx;
+
+/**
+ * The EGL operations used by the asynchronous upload machinery. Contexts and configs are opaque
+ * to callers, so that headless implementations needn't use the EGL classes at all.
+ */
+public interface EGLBackend {
+    /** Returns the calling thread's current context. */
+    Object getCurrentContext();
+
+    /**
+     * Creates a context that shares textures with the given one, along with an unused pbuffer
+     * surface, and makes them current on the calling thread.
+     */
+    void makeSharedContextCurrent(Object parentContext, Object config);
+
+    /** Returns true if fences are supported on the calling thread's display. */
+    boolean isFenceSyncSupported();
+
+    /**
+     * Inserts a fence into the calling thread's command stream and returns a reference to it, or
+     * zero on failure.
+     */
+    int createFenceSync();
+
+    /**
+     * Waits up to the given number of nanoseconds, or forever if negative, for the given fence
+     * to be signaled. Returns true if it was. May be called from any thread.
+     */
+    boolean clientWaitFenceSync(int fenceID, long timeoutNanos);
+
+    /** Destroys the given fence. May be called from any thread. */
+    void destroyFenceSync(int fenceID);
+}
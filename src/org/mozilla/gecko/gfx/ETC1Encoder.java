@@ -0,0 +1,258 @@
+/* -*- Mode: c++; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Mozilla Android code.
+ *
+ * The Initial Developer of the Original Code is Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Patrick Walton <pcwalton@mozilla.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.mozilla.gecko.gfx;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Encodes images to ETC1, the compressed texture format that every OpenGL ES 2-class Android
+ * device supports. ETC1 stores each 4x4 block of pixels in 8 bytes and has no alpha channel, so
+ * it suits opaque content only.
+ *
+ * This is a straightforward encoder: for each block it tries both subblock orientations, picks
+ * the base colors from the subblock averages, and searches every modifier table exhaustively. It
+ * is written in plain Java, without the Android ETC1 utilities, so that it runs anywhere.
+ */
+public class ETC1Encoder {
+    private static final int BYTES_PER_BLOCK = 8;
+
+    // The two positive modifiers of each table; the negative ones are their opposites.
+    private static final int[][] MODIFIER_TABLES = {
+        { 2, 8 }, { 5, 17 }, { 9, 29 }, { 13, 42 }, { 18, 60 }, { 24, 80 }, { 33, 106 },
+        { 47, 183 }
+    };
+
+    // Scratch space for encoding one block: the RGB values of its pixels row by row, the sum of
+    // each subblock's colors, the quantized base colors, and the chosen modifier tables.
+    private final int[] mBlock;
+    private final int[] mSums;
+    private final int[] mBase;
+    private final int[] mBaseColor;
+    private final int[] mTables;
+
+    private ETC1Encoder() {
+        mBlock = new int[16 * 3];
+        mSums = new int[6];
+        mBase = new int[6];
+        mBaseColor = new int[3];
+        mTables = new int[2];
+    }
+
+    /** Returns the number of bytes that an image of the given size takes up when encoded. */
+    public static int getEncodedSize(int width, int height) {
+        return ((width + 3) / 4) * ((height + 3) / 4) * BYTES_PER_BLOCK;
+    }
+
+    /** Returns true if images in the given Cairo format can be encoded. */
+    public static boolean isFormatSupported(int cairoFormat) {
+        return cairoFormat == CairoImage.FORMAT_ARGB32 || cairoFormat == CairoImage.FORMAT_RGB24 ||
+               cairoFormat == CairoImage.FORMAT_RGB16_565;
+    }
+
+    /**
+     * Encodes the block of pixels of the given size that starts at the source's position, with
+     * rows the given number of bytes apart, and writes the result at the destination's position.
+     * ARGB32 pixels are read in the RGBA byte order that they are uploaded in, and their alpha is
+     * ignored. Advances the destination's position; the source is left alone.
+     */
+    public static void encode(ByteBuffer source, int stride, int width, int height,
+                              int cairoFormat, ByteBuffer dest) {
+        if (!isFormatSupported(cairoFormat))
+            throw new IllegalArgumentException("Unsupported Cairo format for ETC1");
+
+        ByteBuffer pixels = source.slice().order(ByteOrder.nativeOrder());
+        ByteBuffer blocks = dest.duplicate().order(ByteOrder.BIG_ENDIAN);
+        new ETC1Encoder().encodeImage(pixels, stride, width, height, cairoFormat, blocks);
+        dest.position(blocks.position());
+    }
+
+    private void encodeImage(ByteBuffer pixels, int stride, int width, int height,
+                             int cairoFormat, ByteBuffer blocks) {
+        int bytesPerPixel = CairoUtils.bitsPerPixelForCairoFormat(cairoFormat) / 8;
+        int[] block = mBlock;
+        for (int blockY = 0; blockY < height; blockY += 4) {
+            for (int blockX = 0; blockX < width; blockX += 4) {
+                // Pixels past the edge of the image repeat the last row or column.
+                for (int y = 0; y < 4; y++) {
+                    int rowStart = Math.min(blockY + y, height - 1) * stride;
+                    for (int x = 0; x < 4; x++) {
+                        int offset = rowStart + Math.min(blockX + x, width - 1) * bytesPerPixel;
+                        readPixel(pixels, offset, cairoFormat, block, (y * 4 + x) * 3);
+                    }
+                }
+                blocks.putLong(encodeBlock());
+            }
+        }
+    }
+
+    private static void readPixel(ByteBuffer pixels, int offset, int cairoFormat, int[] block,
+                                  int index) {
+        if (cairoFormat == CairoImage.FORMAT_RGB16_565) {
+            int pixel = pixels.getShort(offset) & 0xffff;
+            int red = pixel >>> 11, green = (pixel >>> 5) & 0x3f, blue = pixel & 0x1f;
+            block[index] = (red << 3) | (red >>> 2);
+            block[index + 1] = (green << 2) | (green >>> 4);
+            block[index + 2] = (blue << 3) | (blue >>> 2);
+        } else {
+            block[index] = pixels.get(offset) & 0xff;
+            block[index + 1] = pixels.get(offset + 1) & 0xff;
+            block[index + 2] = pixels.get(offset + 2) & 0xff;
+        }
+    }
+
+    /**
+     * Encodes the block of pixels in mBlock, choosing whichever orientation has the smaller
+     * error, and returns the 64 bits of the encoded block.
+     */
+    private long encodeBlock() {
+        int[] block = mBlock, sums = mSums, base = mBase, baseColor = mBaseColor;
+        int[] tables = mTables;
+        long bestError = Long.MAX_VALUE, bestBits = 0;
+        for (int flip = 0; flip < 2; flip++) {
+            // Sum the colors of each subblock.
+            for (int i = 0; i < 6; i++)
+                sums[i] = 0;
+            for (int pixel = 0; pixel < 16; pixel++) {
+                int sub = getSubblock(pixel, flip) * 3;
+                for (int channel = 0; channel < 3; channel++)
+                    sums[sub + channel] += block[pixel * 3 + channel];
+            }
+
+            // Prefer the differential mode, which has more precision, when the averages are close
+            // enough for it.
+            boolean differential = true;
+            for (int channel = 0; channel < 3; channel++) {
+                int first = quantize(sums[channel], 31);
+                int second = quantize(sums[channel + 3], 31);
+                base[channel] = first;
+                base[channel + 3] = second;
+                if (second - first < -4 || second - first > 3)
+                    differential = false;
+            }
+            if (!differential) {
+                for (int i = 0; i < 6; i++)
+                    base[i] = quantize(sums[i], 15);
+            }
+
+            // Choose the best modifier table and modifiers for each subblock.
+            long error = 0, indexBits = 0;
+            for (int sub = 0; sub < 2; sub++) {
+                for (int channel = 0; channel < 3; channel++) {
+                    int value = base[sub * 3 + channel];
+                    baseColor[channel] = differential ? (value << 3) | (value >>> 2) :
+                                                        (value << 4) | value;
+                }
+
+                long bestSubError = Long.MAX_VALUE, bestSubBits = 0;
+                for (int table = 0; table < MODIFIER_TABLES.length; table++) {
+                    long subError = 0, subBits = 0;
+                    for (int pixel = 0; pixel < 16; pixel++) {
+                        if (getSubblock(pixel, flip) != sub)
+                            continue;
+                        int bestModifier = 0, bestPixelError = Integer.MAX_VALUE;
+                        for (int modifier = 0; modifier < 4; modifier++) {
+                            int pixelError = getPixelError(block, pixel * 3, baseColor,
+                                                           getModifier(table, modifier));
+                            if (pixelError < bestPixelError) {
+                                bestPixelError = pixelError;
+                                bestModifier = modifier;
+                            }
+                        }
+                        subError += bestPixelError;
+
+                        // Indices are stored column by column, most significant bits first.
+                        int bit = (pixel % 4) * 4 + pixel / 4;
+                        subBits |= (long)(bestModifier >>> 1) << (bit + 16);
+                        subBits |= (long)(bestModifier & 1) << bit;
+                    }
+                    if (subError < bestSubError) {
+                        bestSubError = subError;
+                        bestSubBits = subBits;
+                        tables[sub] = table;
+                    }
+                }
+                error += bestSubError;
+                indexBits |= bestSubBits;
+            }
+
+            if (error < bestError) {
+                bestError = error;
+                long header;
+                if (differential) {
+                    header = (base[0] << 27) | (((base[3] - base[0]) & 7) << 24) |
+                             (base[1] << 19) | (((base[4] - base[1]) & 7) << 16) |
+                             (base[2] << 11) | (((base[5] - base[2]) & 7) << 8) | 2;
+                } else {
+                    header = (base[0] << 28) | (base[3] << 24) | (base[1] << 20) |
+                             (base[4] << 16) | (base[2] << 12) | (base[5] << 8);
+                }
+                header |= (tables[0] << 5) | (tables[1] << 2) | flip;
+                bestBits = ((header & 0xffffffffL) << 32) | indexBits;
+            }
+        }
+
+        return bestBits;
+    }
+
+    /** Returns which subblock the given pixel, numbered row by row, belongs to. */
+    private static int getSubblock(int pixel, int flip) {
+        return (flip == 0) ? (pixel % 4) / 2 : pixel / 8;
+    }
+
+    /** Quantizes the sum of 8 channel values to their average with the given maximum. */
+    private static int quantize(int sum, int max) {
+        return (sum * max + 255 * 4) / (255 * 8);
+    }
+
+    private static int getModifier(int table, int modifier) {
+        int value = MODIFIER_TABLES[table][modifier & 1];
+        return (modifier < 2) ? value : -value;
+    }
+
+    private static int getPixelError(int[] block, int index, int[] base, int modifier) {
+        int error = 0;
+        for (int channel = 0; channel < 3; channel++) {
+            int value = Math.max(0, Math.min(255, base[channel] + modifier));
+            int difference = value - block[index + channel];
+            error += difference * difference;
+        }
+        return error;
+    }
+}
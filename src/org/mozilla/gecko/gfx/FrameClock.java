@@ -0,0 +1,89 @@
+/* -*- Mode: c++; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Mozilla Android code.
+ *
+ * The Initial Developer of the Original Code is Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Patrick Walton <pcwalton@mozilla.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.gecko.gfx;
+
+/**
+ * Tells interested parties when the compositor starts a frame. The compositor calls tick() at
+ * the start of each frame, so listeners run in step with the display's refresh.
+ */
+public class FrameClock {
+    private volatile Listener[] mListeners;
+    private volatile long mFrameTime;
+
+    public FrameClock() {
+        mListeners = new Listener[0];
+    }
+
+    public synchronized void addListener(Listener listener) {
+        Listener[] listeners = new Listener[mListeners.length + 1];
+        System.arraycopy(mListeners, 0, listeners, 0, mListeners.length);
+        listeners[mListeners.length] = listener;
+        mListeners = listeners;
+    }
+
+    public synchronized void removeListener(Listener listener) {
+        for (int i = 0; i < mListeners.length; i++) {
+            if (mListeners[i] != listener)
+                continue;
+            Listener[] listeners = new Listener[mListeners.length - 1];
+            System.arraycopy(mListeners, 0, listeners, 0, i);
+            System.arraycopy(mListeners, i + 1, listeners, i, listeners.length - i);
+            mListeners = listeners;
+            return;
+        }
+    }
+
+    /** Starts a frame. Call on the compositor thread; doesn't allocate. */
+    public void tick() {
+        long frameTime = System.nanoTime();
+        mFrameTime = frameTime;
+        Listener[] listeners = mListeners;
+        for (int i = 0; i < listeners.length; i++)
+            listeners[i].onFrame(frameTime);
+    }
+
+    /** Returns when the last frame started, on the System.nanoTime() clock, or 0 if none has. */
+    public long getFrameTime() {
+        return mFrameTime;
+    }
+
+    public interface Listener {
+        /** Called on the compositor thread at the start of each frame. Must not block. */
+        public void onFrame(long frameTimeNanos);
+    }
+}
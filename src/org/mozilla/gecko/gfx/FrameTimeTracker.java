@@ -0,0 +1,177 @@
+/* -*- Mode: c++; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Mozilla Android code.
+ *
+ * The Initial Developer of the Original Code is Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Patrick Walton <pcwalton@mozilla.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.gecko.gfx;
+
+/**
+ * Keeps the durations of the most recent frames and reports their percentiles, which show jank
+ * that an average frame rate hides. Listen to the compositor's frame clock to record the time
+ * between the starts of consecutive frames. A frame that lasts several refresh intervals counts
+ * the intervals it missed as dropped frames.
+ *
+ * Recording and the numeric accessors don't allocate, so they're safe to call every frame;
+ * toString() builds a string, so keep it for logging.
+ */
+public class FrameTimeTracker implements FrameClock.Listener {
+    // The refresh interval of a 60Hz display.
+    public static final long DEFAULT_FRAME_INTERVAL = 1000000000L / 60;
+
+    private final long mFrameInterval;
+    // The most recent frame durations in nanoseconds, oldest first from mNext once full.
+    private final long[] mDurations;
+    // A copy of the durations to partition when finding percentiles.
+    private final long[] mScratch;
+    private int mNext;
+    private int mCount;
+    // When the last frame started, or -1 if no frame has been seen since the last reset.
+    private long mLastFrameTime;
+    private long mFrameCount;
+    private long mDroppedFrames;
+
+    public FrameTimeTracker(int capacity, long frameIntervalNanos) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Capacity must be positive");
+        mFrameInterval = frameIntervalNanos;
+        mDurations = new long[capacity];
+        mScratch = new long[capacity];
+        mLastFrameTime = -1;
+    }
+
+    @Override
+    public synchronized void onFrame(long frameTimeNanos) {
+        if (mLastFrameTime >= 0)
+            recordFrame(frameTimeNanos - mLastFrameTime);
+        mLastFrameTime = frameTimeNanos;
+    }
+
+    /** Records a frame that took the given time. */
+    public synchronized void recordFrame(long durationNanos) {
+        mDurations[mNext] = durationNanos;
+        mNext = (mNext + 1) % mDurations.length;
+        mCount = Math.min(mCount + 1, mDurations.length);
+        mFrameCount++;
+
+        // Round to the nearest number of refreshes, so that jitter doesn't count as a drop.
+        long intervals = (durationNanos + mFrameInterval / 2) / mFrameInterval;
+        if (intervals > 1)
+            mDroppedFrames += intervals - 1;
+    }
+
+    /** Returns the number of frames recorded since the last reset. */
+    public synchronized long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /** Returns the number of refreshes missed since the last reset. */
+    public synchronized long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    /**
+     * Returns the given percentile, which is between 0 and 100, of the recent frame durations, or
+     * zero if there are none.
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (mCount == 0)
+            return 0;
+
+        int rank = (int)Math.ceil(mCount * percentile / 100.0) - 1;
+        rank = Math.max(0, Math.min(rank, mCount - 1));
+        System.arraycopy(mDurations, 0, mScratch, 0, mCount);
+        return select(mScratch, mCount, rank);
+    }
+
+    /** Returns the longest of the recent frame durations, or zero if there are none. */
+    public synchronized long getMax() {
+        long max = 0;
+        for (int i = 0; i < mCount; i++)
+            max = Math.max(max, mDurations[i]);
+        return max;
+    }
+
+    /** Forgets every frame, including the one in progress. */
+    public synchronized void reset() {
+        mNext = mCount = 0;
+        mLastFrameTime = -1;
+        mFrameCount = mDroppedFrames = 0;
+    }
+
+    /** Summarizes the recent frames in milliseconds. */
+    @Override
+    public synchronized String toString() {
+        return "frames=" + mFrameCount + " dropped=" + mDroppedFrames +
+               " p50=" + toMillis(getPercentile(50)) + " p90=" + toMillis(getPercentile(90)) +
+               " p99=" + toMillis(getPercentile(99)) + " max=" + toMillis(getMax()) + "ms";
+    }
+
+    private static float toMillis(long nanos) {
+        return nanos / 1000000.0f;
+    }
+
+    /**
+     * Returns the value that would be at the given index if the first count values were sorted,
+     * reordering them in the process. Quickselect, so as not to allocate as sorting may.
+     */
+    private static long select(long[] values, int count, int index) {
+        int left = 0, right = count - 1;
+        while (left < right) {
+            long pivot = values[(left + right) >>> 1];
+            int i = left, j = right;
+            while (i <= j) {
+                while (values[i] < pivot)
+                    i++;
+                while (values[j] > pivot)
+                    j--;
+                if (i <= j) {
+                    long tmp = values[i];
+                    values[i] = values[j];
+                    values[j] = tmp;
+                    i++;
+                    j--;
+                }
+            }
+
+            if (index <= j)
+                right = j;
+            else if (index >= i)
+                left = i;
+            else
+                break;
+        }
+        return values[index];
+    }
+}
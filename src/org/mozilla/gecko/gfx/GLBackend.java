@@ -0,0 +1,65 @@
+/* -*- Mode: c++; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Mozilla Android code.
+ *
+ * The Initial Developer of the Original Code is Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Patrick Walton <pcwalton@mozilla.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.gecko.gfx;
+
+import java.nio.Buffer;
+
+/**
+ * The OpenGL ES 1.1 entry points used by the layer code. Going through this interface rather than
+ * calling GLES11 directly lets the upload pipeline run against a headless implementation.
+ *
+ * Methods mirror the GL functions of the same name and take the same arguments.
+ */
+public interface GLBackend {
+    void glGenTextures(int n, int[] textures, int offset);
+    void glDeleteTextures(int n, int[] textures, int offset);
+    void glBindTexture(int target, int texture);
+    void glTexParameterf(int target, int pname, float param);
+    void glTexParameteriv(int target, int pname, int[] params, int offset);
+    void glPixelStorei(int pname, int param);
+    void glTexImage2D(int target, int level, int internalFormat, int width, int height,
+                      int border, int format, int type, Buffer pixels);
+    void glTexSubImage2D(int target, int level, int xOffset, int yOffset, int width, int height,
+                         int format, int type, Buffer pixels);
+    void glCompressedTexImage2D(int target, int level, int internalFormat, int width,
+                                int height, int border, int imageSize, Buffer data);
+    void glDrawTexfOES(float x, float y, float z, float width, float height);
+    void glFlush();
+    void glFinish();
+    String glGetString(int name);
+}
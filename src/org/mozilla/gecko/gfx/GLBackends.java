@@ -0,0 +1,85 @@
+/* -*- Mode: c++; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Mozilla Android code.
+ *
+ * The Initial Developer of the Original Code is Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Patrick Walton <pcwalton@mozilla.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.gecko.gfx;
+
+/**
+ * Holds the GL and EGL backends used by the layer code. Unless told otherwise, these are the
+ * Android implementations. Replace them before creating any layers or executors.
+ */
+public class GLBackends {
+    // Volatile rather than guarded by a lock, since every GL call, including those made while
+    // drawing, reads them.
+    private static volatile GLBackend sGLBackend;
+    private static volatile EGLBackend sEGLBackend;
+
+    private GLBackends() {
+        // Don't call this. This class contains only static methods.
+    }
+
+    public static GLBackend getGLBackend() {
+        GLBackend backend = sGLBackend;
+        if (backend != null)
+            return backend;
+
+        synchronized (GLBackends.class) {
+            if (sGLBackend == null)
+                sGLBackend = new AndroidGLBackend();
+            return sGLBackend;
+        }
+    }
+
+    public static synchronized void setGLBackend(GLBackend backend) {
+        sGLBackend = backend;
+    }
+
+    public static EGLBackend getEGLBackend() {
+        EGLBackend backend = sEGLBackend;
+        if (backend != null)
+            return backend;
+
+        synchronized (GLBackends.class) {
+            if (sEGLBackend == null)
+                sEGLBackend = new AndroidEGLBackend();
+            return sEGLBackend;
+        }
+    }
+
+    public static synchronized void setEGLBackend(EGLBackend backend) {
+        sEGLBackend = backend;
+    }
+}
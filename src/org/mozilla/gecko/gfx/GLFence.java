@@ -0,0 +1,122 @@
+/* -*- Mode: c++; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Mozilla Android code.
+ *
+ * The Initial Developer of the Original Code is Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Patrick Walton <pcwalton@mozilla.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.gecko.gfx;
+
+/**
+ * Marks a point in a GL command stream so that another thread can find out when the commands
+ * before it have completed, without draining the whole pipeline.
+ *
+ * Fences use EGL_KHR_fence_sync, through the EGL backend, where the display supports it.
+ * Elsewhere, inserting a fence falls back to glFinish(), and the resulting fence is already
+ * signaled.
+ */
+public abstract class GLFence {
+    /**
+     * Inserts a fence after the commands issued so far on the current thread's context. Must be
+     * called on a thread with a current GL context.
+     */
+    public static GLFence insert() {
+        GLBackend gl = GLBackends.getGLBackend();
+        EGLBackend egl = GLBackends.getEGLBackend();
+        if (egl.isFenceSyncSupported()) {
+            gl.glFlush();   // Make sure the commands actually reach the GPU.
+            int fenceID = egl.createFenceSync();
+            if (fenceID != 0)
+                return new EGLSyncFence(egl, fenceID);
+        }
+
+        gl.glFinish();
+        return new FinishedFence();
+    }
+
+    /** Blocks until the fence is signaled. May be called from any thread. */
+    public abstract void waitForCompletion();
+
+    /** Returns true if the fence has been signaled, without blocking. */
+    public abstract boolean isSignaled();
+
+    /**
+     * Releases the fence, while the EGL display is still initialized. Whoever inserts a fence
+     * must see that this gets called; nothing releases it otherwise.
+     */
+    public abstract void dispose();
+
+    /** A fence backed by an EGL sync object. */
+    private static class EGLSyncFence extends GLFence {
+        private final EGLBackend mEGL;
+        private int mFenceID;
+
+        public EGLSyncFence(EGLBackend egl, int fenceID) {
+            mEGL = egl;
+            mFenceID = fenceID;
+        }
+
+        @Override
+        public synchronized void waitForCompletion() {
+            if (mFenceID != 0)
+                mEGL.clientWaitFenceSync(mFenceID, -1L);
+        }
+
+        @Override
+        public synchronized boolean isSignaled() {
+            return mFenceID == 0 || mEGL.clientWaitFenceSync(mFenceID, 0L);
+        }
+
+        @Override
+        public synchronized void dispose() {
+            if (mFenceID == 0)
+                return;
+            mEGL.destroyFenceSync(mFenceID);
+            mFenceID = 0;
+        }
+    }
+
+    /** A fence inserted after glFinish(), which is therefore always signaled. */
+    private static class FinishedFence extends GLFence {
+        @Override
+        public void waitForCompletion() {}
+
+        @Override
+        public boolean isSignaled() {
+            return true;
+        }
+
+        @Override
+        public void dispose() {}
+    }
+}
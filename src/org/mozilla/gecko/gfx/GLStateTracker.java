@@ -0,0 +1,182 @@
+/* -*- Mode: c++; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Mozilla Android code.
+ *
+ * The Initial Developer of the Original Code is Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Patrick Walton <pcwalton@mozilla.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.mozilla.gecko.gfx;
+
+import android.opengl.GLES11;
+import android.opengl.GLES11Ext;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Remembers the texture state the compositor has set, so that redundant binds and parameter
+ * changes never reach the driver. Only the compositor thread may use the tracker.
+ *
+ * The bound texture is tracked per context; per-texture state lives in TextureState objects that
+ * the owner of each texture holds and resets whenever the texture object changes hands.
+ */
+public class GLStateTracker {
+    // Bumped whenever any thread deletes textures, since a deleted name may be reused.
+    private static final AtomicInteger sDeletionGeneration = new AtomicInteger();
+
+    // Created eagerly, since every tile looks it up on every frame.
+    private static final GLStateTracker sInstance = new GLStateTracker();
+
+    private int mBoundTextureID;
+    private int mDeletionGeneration;
+    private long mBinds, mElidedBinds;
+    private long mParameterCalls, mElidedParameterCalls;
+
+    /** The parameters of one texture object that the tracker has set. */
+    public static class TextureState {
+        private boolean mCropRectValid;
+        private final int[] mCropRect;
+        private int mMinFilter, mMagFilter;
+
+        public TextureState() {
+            mCropRect = new int[4];
+        }
+
+        /** Forgets everything, because the texture object has changed. */
+        public void reset() {
+            mCropRectValid = false;
+            mMinFilter = mMagFilter = 0;
+        }
+    }
+
+    public GLStateTracker() {
+        mDeletionGeneration = sDeletionGeneration.get();
+    }
+
+    /** Returns the tracker for the compositor's context. */
+    public static GLStateTracker getInstance() {
+        return sInstance;
+    }
+
+    /** Notes that texture names were deleted on some thread. May be called from any thread. */
+    static void noteTexturesDeleted() {
+        sDeletionGeneration.incrementAndGet();
+    }
+
+    /**
+     * Forgets the bound texture, for callers that bind textures behind the tracker's back, and
+     * whenever the compositor's context is recreated.
+     */
+    public void invalidate() {
+        mBoundTextureID = 0;
+    }
+
+    public void bindTexture(int textureID) {
+        int deletionGeneration = sDeletionGeneration.get();
+        if (deletionGeneration != mDeletionGeneration) {
+            mDeletionGeneration = deletionGeneration;
+            mBoundTextureID = 0;
+        }
+
+        if (textureID != 0 && textureID == mBoundTextureID) {
+            mElidedBinds++;
+            return;
+        }
+
+        GLBackends.getGLBackend().glBindTexture(GLES11.GL_TEXTURE_2D, textureID);
+        mBoundTextureID = textureID;
+        mBinds++;
+    }
+
+    /** Sets the crop rect of the bound texture, whose state is given. */
+    public void setCropRect(TextureState state, int[] cropRect) {
+        int[] current = state.mCropRect;
+        if (state.mCropRectValid && current[0] == cropRect[0] && current[1] == cropRect[1] &&
+                current[2] == cropRect[2] && current[3] == cropRect[3]) {
+            mElidedParameterCalls++;
+            return;
+        }
+
+        GLBackends.getGLBackend().glTexParameteriv(GLES11.GL_TEXTURE_2D,
+                                                   GLES11Ext.GL_TEXTURE_CROP_RECT_OES,
+                                                   cropRect, 0);
+        System.arraycopy(cropRect, 0, current, 0, 4);
+        state.mCropRectValid = true;
+        mParameterCalls++;
+    }
+
+    /** Sets the minification and magnification filters of the bound texture. */
+    public void setFilters(TextureState state, int minFilter, int magFilter) {
+        GLBackend gl = GLBackends.getGLBackend();
+        if (state.mMinFilter == minFilter) {
+            mElidedParameterCalls++;
+        } else {
+            gl.glTexParameterf(GLES11.GL_TEXTURE_2D, GLES11.GL_TEXTURE_MIN_FILTER, minFilter);
+            state.mMinFilter = minFilter;
+            mParameterCalls++;
+        }
+
+        if (state.mMagFilter == magFilter) {
+            mElidedParameterCalls++;
+        } else {
+            gl.glTexParameterf(GLES11.GL_TEXTURE_2D, GLES11.GL_TEXTURE_MAG_FILTER, magFilter);
+            state.mMagFilter = magFilter;
+            mParameterCalls++;
+        }
+    }
+
+    public long getBinds() {
+        return mBinds;
+    }
+
+    public long getElidedBinds() {
+        return mElidedBinds;
+    }
+
+    public long getParameterCalls() {
+        return mParameterCalls;
+    }
+
+    public long getElidedParameterCalls() {
+        return mElidedParameterCalls;
+    }
+
+    public void resetCounters() {
+        mBinds = mElidedBinds = mParameterCalls = mElidedParameterCalls = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "[GLStateTracker: " + mBinds + " binds (" + mElidedBinds + " elided), " +
+               mParameterCalls + " parameter calls (" + mElidedParameterCalls + " elided)]";
+    }
+}
@@ -0,0 +1,314 @@
+/* -*- Mode: c++; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Mozilla Android code.
+ *
+ * The Initial Developer of the Original Code is Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Patrick Walton <pcwalton@mozilla.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.gecko.gfx;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single-threaded executor for GL work that runs higher-priority tasks first, and tasks of
+ * equal priority in the order they were submitted. Tasks submitted through execute() and the
+ * other ExecutorService methods have normal priority.
+ *
+ * Tasks may also carry a key naming what they update, such as a texture. A keyed task replaces
+ * any task with the same key that hasn't started yet, which is cancelled, and takes over its
+ * place in the queue. Only a bounded number of keyed tasks may be queued; beyond that, other
+ * threads that submit one wait for the queue to drain. The executor's own thread can't wait for
+ * itself, so its keyed tasks are queued regardless, and may take the queue past the bound. Tasks
+ * without keys are never held up.
+ *
+ * Producers that mustn't block, or that feed the executor through its own thread, should check
+ * isFull() and hold off while it returns true.
+ */
+public class GLTaskExecutor extends AbstractExecutorService {
+    public static final int PRIORITY_LOW = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_HIGH = 2;
+
+    private final int mCapacity;
+    private final PriorityQueue<Task> mQueue;
+    // The queued keyed tasks, by key.
+    private final HashMap<Object, Task> mKeyedTasks;
+    private final Thread mThread;
+    // Incremented with each submission, to keep tasks of equal priority in order.
+    private long mSequence;
+    private boolean mShutdown;
+    private boolean mTerminated;
+    private int mReplacedTaskCount;
+
+    /** Creates an executor that queues up to the given number of keyed tasks. */
+    public GLTaskExecutor(int capacity) {
+        this(capacity, null);
+    }
+
+    /**
+     * Creates an executor that queues up to the given number of keyed tasks, and whose thread
+     * runs the given setup, such as making a GL context current, before any task of whatever
+     * priority. If the setup throws, the executor shuts down and cancels whatever was queued.
+     */
+    public GLTaskExecutor(int capacity, final Runnable threadSetup) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Capacity must be positive");
+        mCapacity = capacity;
+        mQueue = new PriorityQueue<Task>();
+        mKeyedTasks = new HashMap<Object, Task>();
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                if (threadSetup != null) {
+                    try {
+                        threadSetup.run();
+                    } catch (RuntimeException e) {
+                        abandon();
+                        throw e;
+                    }
+                }
+                runTasks();
+            }
+        }, "GLTaskExecutor");
+        mThread.start();
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        enqueue(command, PRIORITY_NORMAL, null);
+    }
+
+    public Future<?> submit(Runnable task, int priority) {
+        FutureTask<Void> future = new FutureTask<Void>(task, null);
+        enqueue(future, priority, null);
+        return future;
+    }
+
+    public <T> Future<T> submit(Callable<T> task, int priority) {
+        FutureTask<T> future = new FutureTask<T>(task);
+        enqueue(future, priority, null);
+        return future;
+    }
+
+    /**
+     * Submits a task that replaces any queued task with the same key. Waits while the queue is
+     * full of other keyed tasks, unless this is the executor's own thread, which can't wait for
+     * itself.
+     */
+    public Future<?> submit(Runnable task, int priority, Object key) {
+        return submit(new FutureTask<Void>(task, null), priority, key);
+    }
+
+    /** Like submit(Runnable, int, Object), but for tasks with results. */
+    public <T> Future<T> submit(Callable<T> task, int priority, Object key) {
+        return submit(new FutureTask<T>(task), priority, key);
+    }
+
+    private <T> Future<T> submit(FutureTask<T> future, int priority, Object key) {
+        if (key == null)
+            throw new IllegalArgumentException("Keyed tasks need a key");
+        enqueue(future, priority, key);
+        return future;
+    }
+
+    private synchronized void enqueue(Runnable runnable, int priority, Object key) {
+        if (mShutdown)
+            throw new RejectedExecutionException("Executor has been shut down");
+
+        Task task = new Task(runnable, priority, key, mSequence++);
+        if (key != null) {
+            Task replaced = mKeyedTasks.get(key);
+            while (replaced == null && mKeyedTasks.size() >= mCapacity &&
+                    Thread.currentThread() != mThread) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RejectedExecutionException(e);
+                }
+                if (mShutdown)
+                    throw new RejectedExecutionException("Executor has been shut down");
+                replaced = mKeyedTasks.get(key);
+            }
+
+            if (replaced != null) {
+                mQueue.remove(replaced);
+                ((Future<?>)replaced.runnable).cancel(false);
+                task.priority = Math.max(task.priority, replaced.priority);
+                task.sequence = replaced.sequence;
+                mReplacedTaskCount++;
+            }
+            mKeyedTasks.put(key, task);
+        }
+
+        mQueue.add(task);
+        notifyAll();
+    }
+
+    private void runTasks() {
+        while (true) {
+            Task task;
+            synchronized (this) {
+                while (mQueue.isEmpty() && !mShutdown) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // Only shutdownNow() interrupts us, and it empties the queue.
+                    }
+                }
+                task = mQueue.poll();
+                if (task == null) {
+                    mTerminated = true;
+                    notifyAll();
+                    return;
+                }
+                if (task.key != null) {
+                    mKeyedTasks.remove(task.key);
+                    notifyAll();    // Make room for waiting producers.
+                }
+            }
+
+            try {
+                task.runnable.run();
+            } catch (RuntimeException e) {
+                // Futures capture their own exceptions; a bare Runnable mustn't kill the thread.
+                Thread.UncaughtExceptionHandler handler = mThread.getUncaughtExceptionHandler();
+                handler.uncaughtException(mThread, e);
+            }
+        }
+    }
+
+    /** Cancels every queued task and terminates, for when the thread can't run any of them. */
+    private synchronized void abandon() {
+        mShutdown = true;
+        while (!mQueue.isEmpty()) {
+            Runnable runnable = mQueue.poll().runnable;
+            if (runnable instanceof Future)
+                ((Future<?>)runnable).cancel(false);
+        }
+        mKeyedTasks.clear();
+        mTerminated = true;
+        notifyAll();
+    }
+
+    /**
+     * Returns true if the bound on queued keyed tasks has been reached, so that other threads
+     * submitting keyed tasks would wait.
+     */
+    public synchronized boolean isFull() {
+        return mKeyedTasks.size() >= mCapacity;
+    }
+
+    /** Returns the number of tasks waiting to run. */
+    public synchronized int getQueuedTaskCount() {
+        return mQueue.size();
+    }
+
+    /** Returns the number of queued keyed tasks that were replaced by newer ones. */
+    public synchronized int getReplacedTaskCount() {
+        return mReplacedTaskCount;
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        mShutdown = true;
+        notifyAll();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        ArrayList<Runnable> pending = new ArrayList<Runnable>();
+        synchronized (this) {
+            mShutdown = true;
+            while (!mQueue.isEmpty())
+                pending.add(mQueue.poll().runnable);
+            mKeyedTasks.clear();
+            notifyAll();
+        }
+        mThread.interrupt();
+        return pending;
+    }
+
+    @Override
+    public synchronized boolean isShutdown() {
+        return mShutdown;
+    }
+
+    @Override
+    public synchronized boolean isTerminated() {
+        return mTerminated;
+    }
+
+    @Override
+    public synchronized boolean awaitTermination(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!mTerminated) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+                return false;
+            wait(remaining / 1000000L, (int)(remaining % 1000000L));
+        }
+        return true;
+    }
+
+    private static final class Task implements Comparable<Task> {
+        public final Runnable runnable;
+        public final Object key;
+        public int priority;
+        public long sequence;
+
+        public Task(Runnable aRunnable, int aPriority, Object aKey, long aSequence) {
+            runnable = aRunnable;
+            priority = aPriority;
+            key = aKey;
+            sequence = aSequence;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (priority != other.priority)
+                return (priority > other.priority) ? -1 : 1;
+            return (sequence < other.sequence) ? -1 : (sequence > other.sequence) ? 1 : 0;
+        }
+    }
+}
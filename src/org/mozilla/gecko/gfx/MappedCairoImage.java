@@ -0,0 +1,176 @@
+/* -*- Mode: c++; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Mozilla Android code.
+ *
+ * The Initial Developer of the Original Code is Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Patrick Walton <pcwalton@mozilla.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.mozilla.gecko.gfx;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * A Cairo image whose pixels are memory-mapped from a file, so that they can be uploaded
+ * straight from the page cache without being decoded or copied onto the Java heap.
+ *
+ * The file starts with a header of little-endian 32-bit integers: a magic number, then the width,
+ * height, Cairo format, and row stride in bytes. The rows follow immediately.
+ */
+public class MappedCairoImage extends CairoImage {
+    private static final int MAGIC = 0x474d4943;    // "CIMG"
+    private static final int HEADER_SIZE = 5 * 4;
+
+    private final ByteBuffer mBuffer;
+    private final IntSize mSize;
+    private final int mFormat;
+    private final int mStride;
+
+    /** Maps the given file, which must have been written by write() or in the same format. */
+    public MappedCairoImage(File file) throws IOException {
+        FileInputStream stream = new FileInputStream(file);
+        try {
+            FileChannel channel = stream.getChannel();
+            long fileSize = channel.size();
+
+            // Check the header and the file's length before mapping anything.
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining()) {
+                if (channel.read(header) < 0)
+                    throw new IOException("Truncated image header: " + file);
+            }
+            if (header.getInt(0) != MAGIC)
+                throw new IOException("Not a mapped Cairo image: " + file);
+
+            int width = header.getInt(4), height = header.getInt(8);
+            mFormat = header.getInt(12);
+            mStride = header.getInt(16);
+            mSize = new IntSize(width, height);
+
+            int bitsPerPixel;
+            try {
+                bitsPerPixel = CairoUtils.bitsPerPixelForCairoFormat(mFormat);
+            } catch (RuntimeException e) {
+                throw new IOException("Unknown Cairo format " + mFormat + ": " + file);
+            }
+
+            int rowBytes = width * bitsPerPixel / 8;
+            if (width < 0 || height < 0 || mStride < rowBytes)
+                throw new IOException("Bad image geometry: " + file);
+
+            // The last row needn't be padded out to the full stride.
+            long dataSize = (height == 0) ? 0 : (long)mStride * (height - 1) + rowBytes;
+            if (fileSize - HEADER_SIZE < dataSize)
+                throw new IOException("Truncated image data: " + file);
+
+            // The mapping stays valid after the channel is closed.
+            mBuffer = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, dataSize);
+        } finally {
+            stream.close();
+        }
+    }
+
+    /** Returns the length of the file that write() writes for an image of the given size. */
+    public static long getFileLength(IntSize size, int format) {
+        long stride = size.width * CairoUtils.bitsPerPixelForCairoFormat(format) / 8;
+        return HEADER_SIZE + stride * size.height;
+    }
+
+    /**
+     * Writes the given tightly-packed pixels to a file that can be mapped with the constructor.
+     * The buffer's position and limit are left alone.
+     *
+     * The pixels go to a temporary file that is then renamed over the given one, so that a
+     * crash part way through doesn't leave a truncated image behind.
+     */
+    public static void write(File file, IntSize size, int format, ByteBuffer pixels)
+            throws IOException {
+        int stride = size.width * CairoUtils.bitsPerPixelForCairoFormat(format) / 8;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(size.width).putInt(size.height).putInt(format).putInt(stride);
+        header.flip();
+
+        ByteBuffer data = pixels.duplicate();
+        data.clear();
+        data.limit(stride * size.height);
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        boolean written = false;
+        FileOutputStream stream = new FileOutputStream(tempFile);
+        try {
+            FileChannel channel = stream.getChannel();
+            while (header.hasRemaining())
+                channel.write(header);
+            while (data.hasRemaining())
+                channel.write(data);
+            // Make sure the data is on disk before the rename is.
+            channel.force(true);
+            written = true;
+        } finally {
+            stream.close();
+            if (!written)
+                tempFile.delete();
+        }
+
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Couldn't rename " + tempFile + " to " + file);
+        }
+    }
+
+    @Override
+    public ByteBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    @Override
+    public IntSize getSize() {
+        return mSize;
+    }
+
+    @Override
+    public int getFormat() {
+        return mFormat;
+    }
+
+    @Override
+    public int getStride() {
+        return mStride;
+    }
+}
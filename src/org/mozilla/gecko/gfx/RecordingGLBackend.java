@@ -0,0 +1,483 @@
+/* -*- Mode: c++; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Mozilla Android code.
+ *
+ * The Initial Developer of the Original Code is Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Patrick Walton <pcwalton@mozilla.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.gecko.gfx;
+
+import java.nio.Buffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A headless GL and EGL backend that performs no rendering, but records texture storage, bytes
+ * uploaded, binds, and draw calls. It uses no Android classes, so the upload pipeline can be
+ * exercised and benchmarked off-device.
+ *
+ * Uploads are modeled as occupying a simulated GPU for a time determined by a configurable
+ * bandwidth. glFinish() blocks until the simulated GPU is idle, and fences signal once the
+ * simulated GPU has caught up to the point at which they were inserted. Drawing a texture before
+ * the simulated GPU has finished uploading it counts as an incomplete draw, which is what fences
+ * and glFinish() are there to prevent.
+ */
+public class RecordingGLBackend implements GLBackend, EGLBackend {
+    // GL constants, repeated here so that this class doesn't depend on the Android bindings.
+    private static final int GL_ALPHA = 0x1906;
+    private static final int GL_RGB = 0x1907;
+    private static final int GL_LUMINANCE = 0x1909;
+    private static final int GL_UNSIGNED_SHORT_5_6_5 = 0x8363;
+    private static final int GL_UNPACK_ALIGNMENT = 0x0CF5;
+    private static final int GL_ETC1_RGB8_OES = 0x8D64;
+    private static final int GL_EXTENSIONS = 0x1F03;
+
+    // The storage of each texture: width, height, and size in bytes, or a negative size for
+    // compressed storage, which can't be updated with glTexSubImage2D(). Textures without storage
+    // are mapped to null.
+    private final HashMap<Integer, int[]> mTextures;
+    // The texture bound on each thread, standing in for each thread's context.
+    private final ThreadLocal<Integer> mBoundTexture;
+    // Likewise for the unpack alignment, if it has been changed from the default of 4.
+    private final ThreadLocal<Integer> mUnpackAlignment;
+    private final HashMap<Integer, Long> mFences;
+    // When the simulated GPU finishes the last upload into each texture.
+    private final HashMap<Integer, Long> mTextureReadyTimes;
+    // Each upload since the counters were reset, as { texture, x, y, width, height }.
+    private final ArrayList<int[]> mUploads;
+    private int mNextTextureID, mNextFenceID;
+    private long mBytesPerSecond;
+    private boolean mFenceSyncSupported;
+    private boolean mETC1Supported;
+
+    // The time at which the simulated GPU will have finished all submitted work.
+    private long mGPUIdleTimeNanos;
+
+    private long mBytesUploaded;
+    private int mTexImageCalls, mTexSubImageCalls, mTexParameterCalls, mPixelStoreCalls;
+    private int mCompressedTexImageCalls;
+    private int mBindCalls, mDrawCalls, mFinishCalls, mErrors;
+    private int mIncompleteDraws;
+    private int mFencesCreated, mFenceWaits, mFencesDestroyed;
+
+    /**
+     * Creates a backend whose simulated GPU uploads at the given number of bytes per second, or
+     * infinitely fast if zero.
+     */
+    public RecordingGLBackend(long bytesPerSecond) {
+        mTextures = new HashMap<Integer, int[]>();
+        mBoundTexture = new ThreadLocal<Integer>();
+        mUnpackAlignment = new ThreadLocal<Integer>();
+        mFences = new HashMap<Integer, Long>();
+        mTextureReadyTimes = new HashMap<Integer, Long>();
+        mUploads = new ArrayList<int[]>();
+        mNextTextureID = mNextFenceID = 1;
+        mBytesPerSecond = bytesPerSecond;
+        mFenceSyncSupported = true;
+        mETC1Supported = true;
+    }
+
+    /** Installs this backend as both the GL and the EGL backend. */
+    public void install() {
+        GLBackends.setGLBackend(this);
+        GLBackends.setEGLBackend(this);
+    }
+
+    public synchronized void setBytesPerSecond(long bytesPerSecond) {
+        mBytesPerSecond = bytesPerSecond;
+    }
+
+    /** Controls whether fences are available, to exercise the glFinish() fallback. */
+    public synchronized void setFenceSyncSupported(boolean supported) {
+        mFenceSyncSupported = supported;
+    }
+
+    /** Controls whether ETC1 textures are available, as they aren't on every device. */
+    public synchronized void setETC1Supported(boolean supported) {
+        mETC1Supported = supported;
+    }
+
+    @Override
+    public synchronized void glGenTextures(int n, int[] textures, int offset) {
+        for (int i = 0; i < n; i++) {
+            int textureID = mNextTextureID++;
+            mTextures.put(textureID, null);
+            textures[offset + i] = textureID;
+        }
+    }
+
+    @Override
+    public synchronized void glDeleteTextures(int n, int[] textures, int offset) {
+        // Deleting unknown names is allowed in GL, so that isn't an error.
+        for (int i = 0; i < n; i++) {
+            mTextures.remove(textures[offset + i]);
+            mTextureReadyTimes.remove(textures[offset + i]);
+        }
+    }
+
+    @Override
+    public synchronized void glBindTexture(int target, int texture) {
+        if (texture != 0 && !mTextures.containsKey(texture))
+            mErrors++;
+        mBoundTexture.set(texture);
+        mBindCalls++;
+    }
+
+    @Override
+    public synchronized void glTexParameterf(int target, int pname, float param) {
+        mTexParameterCalls++;
+    }
+
+    @Override
+    public synchronized void glTexParameteriv(int target, int pname, int[] params, int offset) {
+        mTexParameterCalls++;
+    }
+
+    @Override
+    public synchronized void glTexImage2D(int target, int level, int internalFormat, int width,
+                                          int height, int border, int format, int type,
+                                          Buffer pixels) {
+        mTexImageCalls++;
+        Integer texture = mBoundTexture.get();
+        if (texture == null || !mTextures.containsKey(texture)) {
+            mErrors++;
+            return;
+        }
+
+        int bytesPerPixel = bytesPerPixel(format, type);
+        mTextures.put(texture, new int[] { width, height, width * height * bytesPerPixel });
+        if (pixels != null)
+            recordUpload(texture, 0, 0, width, height, bytesPerPixel, pixels);
+    }
+
+    @Override
+    public synchronized void glTexSubImage2D(int target, int level, int xOffset, int yOffset,
+                                             int width, int height, int format, int type,
+                                             Buffer pixels) {
+        mTexSubImageCalls++;
+        Integer texture = mBoundTexture.get();
+        int[] storage = (texture == null) ? null : mTextures.get(texture);
+        if (storage == null || storage[2] < 0 || xOffset < 0 || yOffset < 0 ||
+                xOffset + width > storage[0] || yOffset + height > storage[1]) {
+            mErrors++;
+            return;
+        }
+
+        recordUpload(texture, xOffset, yOffset, width, height, bytesPerPixel(format, type),
+                     pixels);
+    }
+
+    @Override
+    public synchronized void glCompressedTexImage2D(int target, int level, int internalFormat,
+                                                    int width, int height, int border,
+                                                    int imageSize, Buffer data) {
+        mCompressedTexImageCalls++;
+        Integer texture = mBoundTexture.get();
+        if (texture == null || !mTextures.containsKey(texture)) {
+            mErrors++;
+            return;
+        }
+
+        // Only ETC1 is used, whose size is easy to check.
+        int expectedSize = ((width + 3) / 4) * ((height + 3) / 4) * 8;
+        if (!mETC1Supported || internalFormat != GL_ETC1_RGB8_OES ||
+                imageSize != expectedSize || data == null ||
+                data.remaining() * elementSize(data) < imageSize) {
+            mErrors++;
+            return;
+        }
+
+        mTextures.put(texture, new int[] { width, height, -imageSize });
+        mUploads.add(new int[] { texture, 0, 0, width, height });
+        mBytesUploaded += imageSize;
+        occupyGPU(texture, imageSize);
+    }
+
+    private void recordUpload(int texture, int x, int y, int width, int height,
+                              int bytesPerPixel, Buffer pixels) {
+        // Each row but the last is padded out to the unpack alignment.
+        Integer unpackAlignment = mUnpackAlignment.get();
+        int alignment = (unpackAlignment == null) ? 4 : unpackAlignment;
+        long rowBytes = (long)width * bytesPerPixel;
+        long stride = (rowBytes + alignment - 1) / alignment * alignment;
+        long requiredBytes = (height == 0) ? 0 : stride * (height - 1) + rowBytes;
+        if (pixels == null || (long)pixels.remaining() * elementSize(pixels) < requiredBytes)
+            mErrors++;
+
+        long bytes = rowBytes * height;
+
+        mUploads.add(new int[] { texture, x, y, width, height });
+        mBytesUploaded += bytes;
+        occupyGPU(texture, bytes);
+    }
+
+    /** Queues an upload of the given size into the given texture on the simulated GPU. */
+    private void occupyGPU(int texture, long bytes) {
+        long startTime = Math.max(System.nanoTime(), mGPUIdleTimeNanos);
+        long duration = (mBytesPerSecond == 0) ? 0 : bytes * 1000000000L / mBytesPerSecond;
+        mGPUIdleTimeNanos = startTime + duration;
+        mTextureReadyTimes.put(texture, mGPUIdleTimeNanos);
+    }
+
+    @Override
+    public synchronized void glDrawTexfOES(float x, float y, float z, float width,
+                                           float height) {
+        mDrawCalls++;
+        Integer texture = mBoundTexture.get();
+        Long readyTime = (texture == null) ? null : mTextureReadyTimes.get(texture);
+        if (readyTime != null && readyTime - System.nanoTime() > 0)
+            mIncompleteDraws++;
+    }
+
+    @Override
+    public synchronized void glPixelStorei(int pname, int param) {
+        mPixelStoreCalls++;
+        if (pname != GL_UNPACK_ALIGNMENT ||
+                (param != 1 && param != 2 && param != 4 && param != 8)) {
+            mErrors++;
+            return;
+        }
+        mUnpackAlignment.set(param);
+    }
+
+    @Override
+    public void glFlush() {
+        // Nothing to do; work is "submitted" as soon as it's recorded.
+    }
+
+    @Override
+    public void glFinish() {
+        long idleTime;
+        synchronized (this) {
+            mFinishCalls++;
+            idleTime = mGPUIdleTimeNanos;
+        }
+        sleepUntil(idleTime);
+    }
+
+    @Override
+    public synchronized String glGetString(int name) {
+        if (name != GL_EXTENSIONS) {
+            mErrors++;
+            return null;
+        }
+        return mETC1Supported ? "GL_OES_draw_texture GL_OES_compressed_ETC1_RGB8_texture" :
+                                "GL_OES_draw_texture";
+    }
+
+    @Override
+    public Object getCurrentContext() {
+        return this;
+    }
+
+    @Override
+    public void makeSharedContextCurrent(Object parentContext, Object config) {
+        // All threads share the same simulated texture namespace.
+    }
+
+    @Override
+    public synchronized boolean isFenceSyncSupported() {
+        return mFenceSyncSupported;
+    }
+
+    @Override
+    public synchronized int createFenceSync() {
+        int fenceID = mNextFenceID++;
+        mFences.put(fenceID, mGPUIdleTimeNanos);
+        mFencesCreated++;
+        return fenceID;
+    }
+
+    @Override
+    public boolean clientWaitFenceSync(int fenceID, long timeoutNanos) {
+        Long signalTime;
+        synchronized (this) {
+            signalTime = mFences.get(fenceID);
+            if (timeoutNanos != 0)
+                mFenceWaits++;
+        }
+        if (signalTime == null)
+            return true;
+
+        long now = System.nanoTime();
+        if (timeoutNanos >= 0 && signalTime - now > timeoutNanos) {
+            sleepUntil(now + timeoutNanos);
+            return false;
+        }
+        sleepUntil(signalTime);
+        return true;
+    }
+
+    @Override
+    public synchronized void destroyFenceSync(int fenceID) {
+        if (mFences.remove(fenceID) != null)
+            mFencesDestroyed++;
+    }
+
+    private static void sleepUntil(long timeNanos) {
+        long remaining;
+        while ((remaining = timeNanos - System.nanoTime()) > 0) {
+            try {
+                Thread.sleep(remaining / 1000000L, (int)(remaining % 1000000L));
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private static int bytesPerPixel(int format, int type) {
+        if (type == GL_UNSIGNED_SHORT_5_6_5)
+            return 2;
+        switch (format) {
+        case GL_ALPHA:
+        case GL_LUMINANCE:
+            return 1;
+        case GL_RGB:
+            return 3;
+        default:
+            return 4;
+        }
+    }
+
+    private static int elementSize(Buffer buffer) {
+        if (buffer instanceof java.nio.ByteBuffer)
+            return 1;
+        if (buffer instanceof java.nio.ShortBuffer || buffer instanceof java.nio.CharBuffer)
+            return 2;
+        if (buffer instanceof java.nio.LongBuffer || buffer instanceof java.nio.DoubleBuffer)
+            return 8;
+        return 4;
+    }
+
+    /** Returns the total size of all texture storage currently specified, in bytes. */
+    public synchronized long getTextureMemory() {
+        long total = 0;
+        for (int[] storage : mTextures.values()) {
+            if (storage != null)
+                total += Math.abs(storage[2]);
+        }
+        return total;
+    }
+
+    public synchronized int getTextureCount() {
+        return mTextures.size();
+    }
+
+    public synchronized long getBytesUploaded() {
+        return mBytesUploaded;
+    }
+
+    public synchronized int getTexImageCalls() {
+        return mTexImageCalls;
+    }
+
+    public synchronized int getTexSubImageCalls() {
+        return mTexSubImageCalls;
+    }
+
+    public synchronized int getCompressedTexImageCalls() {
+        return mCompressedTexImageCalls;
+    }
+
+    public synchronized int getTexParameterCalls() {
+        return mTexParameterCalls;
+    }
+
+    public synchronized int getPixelStoreCalls() {
+        return mPixelStoreCalls;
+    }
+
+    public synchronized int getBindCalls() {
+        return mBindCalls;
+    }
+
+    public synchronized int getDrawCalls() {
+        return mDrawCalls;
+    }
+
+    public synchronized int getFinishCalls() {
+        return mFinishCalls;
+    }
+
+    /**
+     * Returns the number of draws of a texture that the simulated GPU hadn't finished uploading,
+     * which on a real GPU might show partial contents.
+     */
+    public synchronized int getIncompleteDraws() {
+        return mIncompleteDraws;
+    }
+
+    public synchronized int getFencesCreated() {
+        return mFencesCreated;
+    }
+
+    /** Returns the number of fence waits that were allowed to block. */
+    public synchronized int getFenceWaits() {
+        return mFenceWaits;
+    }
+
+    public synchronized int getFencesDestroyed() {
+        return mFencesDestroyed;
+    }
+
+    /**
+     * Returns the texel rects written by each upload since the counters were reset, in order, as
+     * { texture, x, y, width, height }.
+     */
+    public synchronized List<int[]> getUploads() {
+        return new ArrayList<int[]>(mUploads);
+    }
+
+    /** Returns the number of calls that would have raised a GL error or read out of bounds. */
+    public synchronized int getErrors() {
+        return mErrors;
+    }
+
+    /** Clears all the counters, leaving texture storage alone. */
+    public synchronized void resetCounters() {
+        mBytesUploaded = 0;
+        mTexImageCalls = mTexSubImageCalls = mTexParameterCalls = mPixelStoreCalls = 0;
+        mCompressedTexImageCalls = 0;
+        mBindCalls = mDrawCalls = mFinishCalls = mErrors = 0;
+        mIncompleteDraws = 0;
+        mFencesCreated = mFenceWaits = mFencesDestroyed = 0;
+        mUploads.clear();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "[RecordingGLBackend: " + mTextures.size() + " textures, " + mBytesUploaded +
+               " bytes uploaded, " + mBindCalls + " binds, " + mDrawCalls + " draws]";
+    }
+}
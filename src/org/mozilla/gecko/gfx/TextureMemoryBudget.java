@@ -0,0 +1,203 @@
+/* -*- Mode: c++; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Mozilla Android code.
+ *
+ * The Initial Developer of the Original Code is Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Patrick Walton <pcwalton@mozilla.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.gecko.gfx;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/**
+ * Tracks the texture memory used by all layers against a global budget. When usage goes over
+ * the budget, the least recently used clients are asked to evict whatever textures they can
+ * spare until usage fits again.
+ *
+ * Clients account for their memory through a registration, which refers to the client weakly,
+ * so that a client that's dropped without being disposed can still be collected. Such a client
+ * should unregister from its finalizer.
+ */
+public class TextureMemoryBudget {
+    // The default budget, measured in bytes.
+    private static final long DEFAULT_BUDGET = 32L * 1024 * 1024;
+
+    private static TextureMemoryBudget sInstance;
+
+    // Registrations holding memory, in least-recently-used order. The values are unused.
+    private final LinkedHashMap<Registration, Boolean> mRegistrations;
+    private long mBudget;
+    private long mUsage;
+    private long mEvictedBytes;
+
+    /** Something that holds texture memory and can give some of it back on request. */
+    public interface Client {
+        /**
+         * Frees whatever textures can be spared right now, reporting each with free(). Returns
+         * the number of bytes freed. Called without the budget's lock held.
+         */
+        long evictTextures();
+    }
+
+    /** A client's account with the budget. */
+    public static final class Registration {
+        private final WeakReference<Client> mClient;
+        // The bytes the client holds. Guarded by the budget.
+        private long mBytes;
+
+        private Registration(Client client) {
+            mClient = new WeakReference<Client>(client);
+        }
+    }
+
+    public TextureMemoryBudget(long budget) {
+        mRegistrations = new LinkedHashMap<Registration, Boolean>(16, 0.75f, true);
+        mBudget = budget;
+    }
+
+    /** Returns the budget shared by all layers. */
+    public static synchronized TextureMemoryBudget getInstance() {
+        if (sInstance == null)
+            sInstance = new TextureMemoryBudget(DEFAULT_BUDGET);
+        return sInstance;
+    }
+
+    /** Opens an account for the given client, which holds nothing yet. */
+    public Registration register(Client client) {
+        return new Registration(client);
+    }
+
+    /**
+     * Records that the given client has allocated the given number of bytes, then evicts other
+     * clients' textures if that put us over budget. Must not be called with any client's lock
+     * held.
+     */
+    public void allocate(Registration registration, long bytes) {
+        synchronized (this) {
+            registration.mBytes += bytes;
+            mRegistrations.put(registration, Boolean.TRUE);
+            mUsage += bytes;
+            if (mUsage <= mBudget)
+                return;
+        }
+        enforceBudget(registration);
+    }
+
+    /** Records that the given client has freed the given number of bytes. */
+    public synchronized void free(Registration registration, long bytes) {
+        if (registration.mBytes == 0)
+            return;
+
+        long freed = Math.min(registration.mBytes, bytes);
+        registration.mBytes -= freed;
+        mUsage -= freed;
+        if (registration.mBytes == 0)
+            mRegistrations.remove(registration);
+    }
+
+    /** Forgets everything the given client holds. */
+    public synchronized void unregister(Registration registration) {
+        mUsage -= registration.mBytes;
+        registration.mBytes = 0;
+        mRegistrations.remove(registration);
+    }
+
+    /** Marks the given client as recently used. */
+    public synchronized void touch(Registration registration) {
+        mRegistrations.get(registration);
+    }
+
+    /**
+     * Evicts textures if usage is over budget. Textures that were busy at the last allocation
+     * may have become evictable since, so clients call this when they finish with them. Must not
+     * be called with any client's lock held.
+     */
+    public void enforceBudget() {
+        synchronized (this) {
+            if (mUsage <= mBudget)
+                return;
+        }
+        enforceBudget(null);
+    }
+
+    private void enforceBudget(Registration requester) {
+        ArrayList<Client> candidates;
+        synchronized (this) {
+            candidates = new ArrayList<Client>(mRegistrations.size());
+            for (Registration registration : mRegistrations.keySet()) {
+                // A client that has been collected will unregister from its finalizer.
+                Client client = registration.mClient.get();
+                if (registration != requester && client != null)
+                    candidates.add(client);
+            }
+        }
+
+        for (Client client : candidates) {
+            long freed = client.evictTextures();
+            synchronized (this) {
+                mEvictedBytes += freed;
+                if (mUsage <= mBudget)
+                    return;
+            }
+        }
+    }
+
+    public synchronized long getBudget() {
+        return mBudget;
+    }
+
+    /** Sets the budget in bytes, evicting textures right away if usage is now over it. */
+    public void setBudget(long budget) {
+        synchronized (this) {
+            mBudget = budget;
+        }
+        enforceBudget();
+    }
+
+    public synchronized long getUsage() {
+        return mUsage;
+    }
+
+    /** Returns the total number of bytes evicted to stay within the budget. */
+    public synchronized long getEvictedBytes() {
+        return mEvictedBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "[TextureMemoryBudget: " + mUsage + "/" + mBudget + " bytes, " + mEvictedBytes +
+               " evicted]";
+    }
+}
@@ -0,0 +1,289 @@
+/* -*- Mode: c++; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Mozilla Android code.
+ *
+ * The Initial Developer of the Original Code is Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Patrick Walton <pcwalton@mozilla.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.gecko.gfx;
+
+import android.opengl.GLES11;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * A pool of texture objects, keyed by size and format, that lets tiles reuse textures instead of
+ * generating and deleting them whenever layers are recreated.
+ *
+ * Textures handed out by the pool already have their parameters set and their storage specified,
+ * so they can be filled with glTexSubImage2D(). Their contents are undefined.
+ *
+ * Textures may be released from any thread; textures that the pool decides not to keep are
+ * deleted the next time the pool is used from a GL thread.
+ *
+ * Texture names only mean something in the GL context they were created in. When that context is
+ * lost, onContextLost() retires the pool, and getInstance() hands out a fresh one.
+ */
+public class TexturePool {
+    // The number of idle textures we keep around before deleting the excess.
+    private static final int DEFAULT_MAX_IDLE_TEXTURES = 16;
+
+    private static TexturePool sInstance;
+
+    private final HashMap<Key, ArrayList<Integer>> mIdleTextures;
+    private final ArrayList<Integer> mDoomedTextures;
+    private int mIdleTextureCount;
+    private int mMaxIdleTextures;
+    private long mHits, mMisses;
+    // Set once the pool's context has been lost, after which textures given back are ignored.
+    private boolean mContextLost;
+    // Whether the context can create ETC1 textures, or null if it hasn't been asked yet.
+    private Boolean mETC1Supported;
+
+    public TexturePool() {
+        mIdleTextures = new HashMap<Key, ArrayList<Integer>>();
+        mDoomedTextures = new ArrayList<Integer>();
+        mMaxIdleTextures = DEFAULT_MAX_IDLE_TEXTURES;
+    }
+
+    /** Returns the pool shared by all layers in the current GL context. */
+    public static synchronized TexturePool getInstance() {
+        if (sInstance == null)
+            sInstance = new TexturePool();
+        return sInstance;
+    }
+
+    /**
+     * Forgets every texture of a GL context that has been lost, without making any GL calls:
+     * the names may already belong to textures of the new context. The retired pool ignores any
+     * textures that layers of the old context give back later.
+     */
+    public static void onContextLost() {
+        TexturePool pool;
+        synchronized (TexturePool.class) {
+            pool = sInstance;
+            sInstance = null;
+        }
+        if (pool != null)
+            pool.retire();
+    }
+
+    private synchronized void retire() {
+        mContextLost = true;
+        mIdleTextures.clear();
+        mIdleTextureCount = 0;
+        mDoomedTextures.clear();
+    }
+
+    /**
+     * Returns a texture of the given size and Cairo format, reusing an idle one if possible.
+     * Must be called on a thread with a current GL context; the texture is left bound.
+     */
+    public int acquire(int width, int height, int cairoFormat) {
+        deleteDoomedTextures();
+        GLBackend gl = GLBackends.getGLBackend();
+
+        Key key = new Key(width, height, cairoFormat);
+        synchronized (this) {
+            ArrayList<Integer> textures = mIdleTextures.get(key);
+            if (textures != null && !textures.isEmpty()) {
+                mHits++;
+                mIdleTextureCount--;
+                int textureID = textures.remove(textures.size() - 1);
+                gl.glBindTexture(GLES11.GL_TEXTURE_2D, textureID);
+                return textureID;
+            }
+            mMisses++;
+        }
+
+        int textureID = generateTexture(gl);
+        CairoGLInfo glInfo = new CairoGLInfo(cairoFormat);
+        gl.glTexImage2D(GLES11.GL_TEXTURE_2D, 0, glInfo.internalFormat, width, height, 0,
+                        glInfo.format, glInfo.type, null);
+        return textureID;
+    }
+
+    /**
+     * Creates a texture with the given compressed contents. Compressed textures can't be updated
+     * in place, so they are never reused: give them back with discard(), not release(). Must be
+     * called on a thread with a current GL context, and only if isETC1Supported(); the texture is
+     * left bound.
+     */
+    public int createCompressed(int width, int height, int internalFormat, ByteBuffer data) {
+        deleteDoomedTextures();
+        GLBackend gl = GLBackends.getGLBackend();
+
+        int textureID = generateTexture(gl);
+        gl.glCompressedTexImage2D(GLES11.GL_TEXTURE_2D, 0, internalFormat, width, height, 0,
+                                  data.remaining(), data);
+        return textureID;
+    }
+
+    /**
+     * Returns true if the pool's context can create ETC1 textures, which OpenGL ES 1.1 doesn't
+     * require. Must be called on a thread with a current GL context.
+     */
+    public synchronized boolean isETC1Supported() {
+        if (mETC1Supported == null) {
+            String extensions = GLBackends.getGLBackend().glGetString(GLES11.GL_EXTENSIONS);
+            mETC1Supported = extensions != null &&
+                (" " + extensions + " ").contains(" GL_OES_compressed_ETC1_RGB8_texture ");
+        }
+        return mETC1Supported;
+    }
+
+    /** Generates and binds a texture with the parameters that layers expect. */
+    private static int generateTexture(GLBackend gl) {
+        int[] textures = new int[1];
+        gl.glGenTextures(1, textures, 0);
+        int textureID = textures[0];
+
+        gl.glBindTexture(GLES11.GL_TEXTURE_2D, textureID);
+        gl.glTexParameterf(GLES11.GL_TEXTURE_2D, GLES11.GL_TEXTURE_MIN_FILTER,
+                           GLES11.GL_NEAREST);
+        gl.glTexParameterf(GLES11.GL_TEXTURE_2D, GLES11.GL_TEXTURE_MAG_FILTER,
+                           GLES11.GL_LINEAR);
+        gl.glTexParameterf(GLES11.GL_TEXTURE_2D, GLES11.GL_TEXTURE_WRAP_S,
+                           GLES11.GL_CLAMP_TO_EDGE);
+        gl.glTexParameterf(GLES11.GL_TEXTURE_2D, GLES11.GL_TEXTURE_WRAP_T,
+                           GLES11.GL_CLAMP_TO_EDGE);
+        return textureID;
+    }
+
+    /**
+     * Returns a texture acquired from this pool to it. May be called from any thread, including
+     * the finalizer thread.
+     */
+    public synchronized void release(int textureID, int width, int height, int cairoFormat) {
+        if (textureID == 0 || mContextLost)
+            return;
+
+        if (mIdleTextureCount >= mMaxIdleTextures) {
+            mDoomedTextures.add(textureID);
+            return;
+        }
+
+        Key key = new Key(width, height, cairoFormat);
+        ArrayList<Integer> textures = mIdleTextures.get(key);
+        if (textures == null) {
+            textures = new ArrayList<Integer>();
+            mIdleTextures.put(key, textures);
+        }
+        textures.add(textureID);
+        mIdleTextureCount++;
+    }
+
+    /**
+     * Deletes a texture acquired from this pool instead of keeping it for reuse. The deletion
+     * happens the next time the pool is used from a GL thread, so this may be called from any
+     * thread.
+     */
+    public synchronized void discard(int textureID) {
+        if (textureID != 0 && !mContextLost)
+            mDoomedTextures.add(textureID);
+    }
+
+    /** Deletes all idle textures. Must be called on a thread with a current GL context. */
+    public void trim() {
+        synchronized (this) {
+            for (ArrayList<Integer> textures : mIdleTextures.values())
+                mDoomedTextures.addAll(textures);
+            mIdleTextures.clear();
+            mIdleTextureCount = 0;
+        }
+        deleteDoomedTextures();
+    }
+
+    private void deleteDoomedTextures() {
+        int[] textures;
+        synchronized (this) {
+            if (mDoomedTextures.isEmpty())
+                return;
+            textures = new int[mDoomedTextures.size()];
+            for (int i = 0; i < textures.length; i++)
+                textures[i] = mDoomedTextures.get(i);
+            mDoomedTextures.clear();
+        }
+        GLBackends.getGLBackend().glDeleteTextures(textures.length, textures, 0);
+        GLStateTracker.noteTexturesDeleted();
+    }
+
+    /** Sets the number of idle textures the pool may hold before it starts deleting them. */
+    public synchronized void setMaxIdleTextures(int maxIdleTextures) {
+        mMaxIdleTextures = maxIdleTextures;
+    }
+
+    public synchronized long getHits() {
+        return mHits;
+    }
+
+    public synchronized long getMisses() {
+        return mMisses;
+    }
+
+    /** Returns the fraction of acquisitions that were satisfied by an idle texture. */
+    public synchronized float getHitRate() {
+        long total = mHits + mMisses;
+        return (total == 0) ? 0.0f : (float)mHits / total;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "[TexturePool: " + mHits + " hits, " + mMisses + " misses, " +
+               mIdleTextureCount + " idle]";
+    }
+
+    private static final class Key {
+        public final int width, height, format;
+
+        public Key(int aWidth, int aHeight, int aFormat) {
+            width = aWidth;
+            height = aHeight;
+            format = aFormat;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key))
+                return false;
+            Key key = (Key)other;
+            return key.width == width && key.height == height && key.format == format;
+        }
+
+        @Override
+        public int hashCode() {
+            return (width * 31 + height) * 31 + format;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/* -*- Mode: c++; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Mozilla Android code.
+ *
+ * The Initial Developer of the Original Code is Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Patrick Walton <pcwalton@mozilla.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.gecko.gfx;
+
+import android.graphics.Rect;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * A tiled layer that splits its image into a two-dimensional grid of fixed-size tiles, so that
+ * invalidation, upload, and drawing all happen at tile granularity.
+ */
+public class TileLayer extends TiledLayer {
+    public static final int DEFAULT_TILE_SIZE = 256;
+
+    private final int mTileSize;
+
+    public TileLayer(CairoImage imageBuffer, ExecutorService asyncGLExecutor) {
+        this(imageBuffer, asyncGLExecutor, DEFAULT_TILE_SIZE);
+    }
+
+    public TileLayer(CairoImage imageBuffer, ExecutorService asyncGLExecutor, int tileSize) {
+        super(imageBuffer, asyncGLExecutor);
+        mTileSize = tileSize;
+        recreateTiles();
+    }
+
+    public TileLayer(CairoImage imageBuffer, AsyncGLExecutorPool asyncGLExecutorPool,
+                     int tileSize) {
+        super(imageBuffer, asyncGLExecutorPool);
+        mTileSize = tileSize;
+        recreateTiles();
+    }
+
+    public int getTileSize() {
+        return mTileSize;
+    }
+
+    @Override
+    protected Rect[] computeTileBounds(IntSize imageSize, int imageFormat) {
+        int columns = (imageSize.width + mTileSize - 1) / mTileSize;
+        int rows = (imageSize.height + mTileSize - 1) / mTileSize;
+
+        // Tiles along the right and bottom edges are clipped to the image.
+        Rect[] tiles = new Rect[columns * rows];
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                int left = column * mTileSize, top = row * mTileSize;
+                tiles[row * columns + column] =
+                    new Rect(left, top, Math.min(left + mTileSize, imageSize.width),
+                             Math.min(top + mTileSize, imageSize.height));
+            }
+        }
+        return tiles;
+    }
+}
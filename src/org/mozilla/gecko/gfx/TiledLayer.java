@@ -0,0 +1,1818 @@
+/* -*- Mode: c++; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Mozilla Android code.
+ *
+ * The Initial Developer of the Original Code is Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Patrick Walton <pcwalton@mozilla.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.gecko.gfx;
+
+import android.graphics.Point;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.opengl.ETC1;
+import android.opengl.GLES11;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A layer that displays a Cairo image by splitting it into double-buffered textures ("tiles")
+ * that are uploaded asynchronously. Subclasses decide how the image is partitioned.
+ */
+public abstract class TiledLayer {
+    // The fraction of a tile that may be dirty before we give up on partial uploads and
+    // replace the whole texture.
+    private static final float DEFAULT_FULL_UPLOAD_THRESHOLD = 0.5f;
+    // The tallest upload of padded rows that is done one row at a time rather than repacked.
+    private static final int MAX_ROW_BY_ROW_UPLOAD_HEIGHT = 4;
+    // How often tiles that are still being uploaded are checked for compression, in milliseconds.
+    private static final long COMPRESSION_RETRY_DELAY = 100L;
+    // The most that tiles are ever shrunk by, in each dimension, when zoomed out.
+    private static final int MAX_REDUCTION = 8;
+    // How much further than usual the previews of progressive uploads are shrunk.
+    private static final int PREVIEW_REDUCTION = 4;
+
+    private final ExecutorService mAsyncGLExecutor;
+    private final AsyncGLExecutorPool mAsyncGLExecutorPool;
+    // Paces uploads across frames, or null to upload as fast as possible.
+    private final UploadScheduler mUploadScheduler;
+    private final UploadMetrics mMetrics;
+    // The pool of the GL context that the layer was created for, which its textures go back to
+    // even if that context has since been lost.
+    private final TexturePool mTexturePool;
+    private volatile float mFullUploadThreshold;
+    private final CairoImage mImageBuffer;
+    // Changed only on the upload thread, but read by the compositor.
+    private volatile Point mOrigin;
+    private volatile float mResolution;
+    // Replaced on the upload thread, and read by the compositor.
+    private volatile Tile[] mTiles;
+    // Converts pixels to the texture format during uploads, or null to upload them as they are.
+    private volatile PixelConverter mPixelConverter;
+    // How long a tile must go without being invalidated before it's compressed, in milliseconds,
+    // or negative if tiles aren't compressed.
+    private volatile long mCompressionDelay;
+    // Whether the GL context can create ETC1 textures. Found out on the upload thread when the
+    // tiles are created, since the compression thread has no context.
+    private volatile boolean mETC1Supported;
+    // The scale below which tiles are uploaded at reduced resolution, or zero to never reduce.
+    private volatile float mReductionThreshold;
+    // The factor that the compositor wants tiles shrunk by at the current zoom, and the one that
+    // the upload thread has invalidated the tiles for. Uploads use the latter.
+    private volatile int mRequestedReduction;
+    private volatile int mReduction;
+    // Whether big changes to visible tiles are shown at low resolution before full resolution.
+    private volatile boolean mProgressive;
+    // Whether a compression pass has been scheduled and hasn't started.
+    private final AtomicBoolean mCompressionScheduled;
+    // The transactions that have been ended but not yet applied, merged into one.
+    private final AtomicReference<TransactionRecord> mPendingTransaction;
+    // Whether a task that applies the pending transaction has been submitted and hasn't started.
+    private final AtomicBoolean mApplyScheduled;
+    // The part of the layer that was visible at the last draw, in layer coordinates, or empty if
+    // the layer hasn't been drawn yet. Guarded by its own monitor.
+    private final RectF mVisibleRect;
+    // Held while swapping and drawing, so that a transaction's swaps appear all at once.
+    private final Object mSwapLock;
+    // Set once dispose() has released the textures, after which nothing is uploaded.
+    private volatile boolean mDisposed;
+    // Scratch space for draw(), which only ever runs on the compositor thread.
+    private final RectF mDrawBounds;
+    // The last batch submitted under each key, which a newer one may replace if it hasn't
+    // started. Only touched on the upload thread.
+    private final HashMap<BatchKey, UploadBatch> mSubmittedBatches;
+
+    // A scratch buffer for each upload thread.
+    private static final ThreadLocal<ByteBuffer> sScratchBuffer = new ThreadLocal<ByteBuffer>();
+    // A second one, for shrinking pixels before they're converted.
+    private static final ThreadLocal<ByteBuffer> sReductionBuffer = new ThreadLocal<ByteBuffer>();
+    // The GL_UNPACK_ALIGNMENT of each upload thread's context, or null if it's the default.
+    private static final ThreadLocal<Integer> sUnpackAlignment = new ThreadLocal<Integer>();
+    // The background thread that compresses idle tiles for all layers. Created lazily.
+    private static ScheduledExecutorService sCompressionExecutor;
+
+    protected TiledLayer(CairoImage imageBuffer, ExecutorService asyncGLExecutor) {
+        this(imageBuffer, new AsyncGLExecutorPool(asyncGLExecutor));
+    }
+
+    /**
+     * Creates a layer whose tiles are uploaded by the given pool of workers. Each tile is always
+     * uploaded by the same worker.
+     */
+    protected TiledLayer(CairoImage imageBuffer, AsyncGLExecutorPool asyncGLExecutorPool) {
+        mAsyncGLExecutorPool = asyncGLExecutorPool;
+        mAsyncGLExecutor = asyncGLExecutorPool.getPrimaryExecutor();
+        mUploadScheduler = asyncGLExecutorPool.getUploadScheduler();
+        mMetrics = new UploadMetrics();
+        mTexturePool = TexturePool.getInstance();
+        mFullUploadThreshold = DEFAULT_FULL_UPLOAD_THRESHOLD;
+        mImageBuffer = imageBuffer;
+        mOrigin = new Point(0, 0);
+        mResolution = 1.0f;
+        mCompressionDelay = -1L;
+        mRequestedReduction = mReduction = 1;
+        mCompressionScheduled = new AtomicBoolean();
+        mPendingTransaction = new AtomicReference<TransactionRecord>();
+        mApplyScheduled = new AtomicBoolean();
+        mVisibleRect = new RectF();
+        mSwapLock = new Object();
+        mDrawBounds = new RectF();
+        mSubmittedBatches = new HashMap<BatchKey, UploadBatch>();
+    }
+
+    /**
+     * Returns the bounds of each tile, in layer coordinates, that the image should be split into.
+     * The tiles must not overlap and must together cover the whole image.
+     */
+    protected abstract Rect[] computeTileBounds(IntSize imageSize, int imageFormat);
+
+    /** Discards the current tiles and partitions the image anew. Must be called on a GL thread. */
+    protected void recreateTiles() {
+        mETC1Supported = mTexturePool.isETC1Supported();
+        Rect[] tileBounds = computeTileBounds(mImageBuffer.getSize(), mImageBuffer.getFormat());
+
+        // Create the new tiles.
+        Tile[] tiles = new Tile[tileBounds.length];
+        for (int i = 0; i < tileBounds.length; i++)
+            tiles[i] = new Tile(tileBounds[i], mAsyncGLExecutorPool.getExecutor(i));
+
+        Tile[] oldTiles;
+        synchronized (mSwapLock) {
+            oldTiles = mTiles;
+            mTiles = tiles;
+        }
+
+        // Delete the old tiles, if necessary.
+        if (oldTiles != null) {
+            for (Tile tile : oldTiles)
+                tile.dispose();
+        }
+    }
+
+    /**
+     * Sets the conversion applied to pixels as they're uploaded, or null for none. The textures
+     * are recreated in the converter's target format and reuploaded.
+     */
+    public void setPixelConverter(final PixelConverter converter) {
+        if (converter != null && converter.getSourceFormat() != mImageBuffer.getFormat())
+            throw new IllegalArgumentException("Converter doesn't accept the image format");
+
+        mAsyncGLExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mPixelConverter = converter;
+                recreateTiles();
+                scheduleApplyPendingTransaction();
+            }
+        });
+    }
+
+    /** Returns the metrics of this layer's uploads, which also feed the global metrics. */
+    public UploadMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    public PixelConverter getPixelConverter() {
+        return mPixelConverter;
+    }
+
+    /**
+     * Compresses tiles to ETC1 once they have gone the given number of milliseconds without
+     * being invalidated, or stops compressing new tiles if negative. ETC1 has no alpha channel,
+     * so this is only for opaque layers; layers with a pixel converter are never compressed, and
+     * neither are layers in GL contexts without GL_OES_compressed_ETC1_RGB8_texture.
+     */
+    public void setCompressionDelay(long delayMillis) {
+        mCompressionDelay = delayMillis;
+        if (delayMillis >= 0)
+            scheduleCompression(delayMillis);
+    }
+
+    public long getCompressionDelay() {
+        return mCompressionDelay;
+    }
+
+    private void scheduleCompression(long delayMillis) {
+        if (!mCompressionScheduled.compareAndSet(false, true))
+            return;
+
+        getCompressionExecutor().schedule(new Runnable() {
+            @Override
+            public void run() {
+                mCompressionScheduled.set(false);
+                compressIdleTiles();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Uploads tiles at reduced resolution while they're drawn at less than the given scale:
+     * halved as many times as they can be, up to MAX_REDUCTION, while keeping at least one texel
+     * per pixel. Zero, the default, always uploads at full resolution. Crossing the threshold
+     * reuploads every tile, but the old textures are drawn until the new ones are ready.
+     */
+    public void setReductionThreshold(float scale) {
+        if (scale > 0.0f && !BoxFilter.isFormatSupported(mImageBuffer.getFormat()))
+            throw new IllegalArgumentException("Image format can't be reduced");
+        mReductionThreshold = scale;
+    }
+
+    public float getReductionThreshold() {
+        return mReductionThreshold;
+    }
+
+    /**
+     * Sets whether visible tiles that are mostly invalidated are first uploaded and shown at a
+     * quarter of their usual resolution, then refined. This brings changes to the screen much
+     * sooner, at the cost of a brief blur. A tile that is invalidated again before it has been
+     * refined gets a new preview instead.
+     */
+    public void setProgressive(boolean progressive) {
+        if (progressive && !BoxFilter.isFormatSupported(mImageBuffer.getFormat()))
+            throw new IllegalArgumentException("Image format can't be reduced");
+        mProgressive = progressive;
+    }
+
+    public boolean isProgressive() {
+        return mProgressive;
+    }
+
+    /** Returns the factor to shrink tiles by when they're drawn at the given scale. */
+    private static int getReductionForScale(float scale, float threshold) {
+        if (!(scale > 0.0f && scale < threshold))
+            return 1;
+        int reduction = 1;
+        while (reduction < MAX_REDUCTION && scale * reduction * 2 <= 1.0f)
+            reduction *= 2;
+        return reduction;
+    }
+
+    private static synchronized ScheduledExecutorService getCompressionExecutor() {
+        if (sCompressionExecutor == null) {
+            sCompressionExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "TiledLayer compression");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+        }
+        return sCompressionExecutor;
+    }
+
+    /**
+     * Compresses the tiles that have been idle long enough, and checks again when the next one
+     * will have been. Runs on the compression thread.
+     */
+    private void compressIdleTiles() {
+        long delay = mCompressionDelay;
+        if (delay < 0 || mPixelConverter != null || !mETC1Supported ||
+                !ETC1Encoder.isFormatSupported(mImageBuffer.getFormat())) {
+            return;
+        }
+
+        long now = System.nanoTime() / 1000000L;
+        long nextCheck = -1L;
+        for (Tile tile : mTiles) {
+            long wait = tile.getTimeUntilCompressible(now, delay);
+            if (wait == 0)
+                tile.compress();
+            else if (wait > 0)
+                nextCheck = (nextCheck < 0) ? wait : Math.min(nextCheck, wait);
+        }
+
+        if (nextCheck >= 0)
+            scheduleCompression(nextCheck);
+    }
+
+    /**
+     * Returns every texture to the pool and gives up the layer's share of the memory budget.
+     * The layer draws and uploads nothing afterward. Needs no GL context, so it's safe anywhere.
+     */
+    public void dispose() {
+        mDisposed = true;
+        Tile[] tiles;
+        synchronized (mSwapLock) {
+            tiles = mTiles;
+        }
+        if (tiles == null)
+            return;
+        for (Tile tile : tiles)
+            tile.dispose();
+    }
+
+    public void draw(RenderContext context) {
+        if (mTiles == null || mDisposed)
+            return;
+
+        // Remember what's visible so that the next transaction can prioritize it.
+        float scaleFactor = context.zoomFactor / mResolution;
+        Point origin = mOrigin;
+        RectF viewport = context.viewport;
+        synchronized (mVisibleRect) {
+            mVisibleRect.set(viewport.left / scaleFactor - origin.x,
+                             viewport.top / scaleFactor - origin.y,
+                             viewport.right / scaleFactor - origin.x,
+                             viewport.bottom / scaleFactor - origin.y);
+        }
+
+        // Textures of a different resolution are needed once the zoom crosses a threshold.
+        boolean uploadNeeded = false;
+        int reduction = getReductionForScale(scaleFactor, mReductionThreshold);
+        if (reduction != mRequestedReduction) {
+            mRequestedReduction = reduction;
+            uploadNeeded = true;
+        }
+
+        long lockTime = System.nanoTime();
+        synchronized (mSwapLock) {
+            mMetrics.noteCompositorBlocked(System.nanoTime() - lockTime);
+            for (Tile tile : mTiles)
+                uploadNeeded |= tile.draw(context);
+        }
+
+        // Evicted tiles that have scrolled into view are reloaded without waiting for content, as
+        // are tiles at the wrong resolution.
+        if (uploadNeeded)
+            scheduleApplyPendingTransaction();
+    }
+
+    /**
+     * Returns true if any of the layer's workers has a full queue. Since endTransaction() never
+     * blocks, this is how producers learn to hold off on further transactions until the uploads
+     * catch up.
+     */
+    public boolean isBackedUp() {
+        for (int i = 0; i < mAsyncGLExecutorPool.getWorkerCount(); i++) {
+            ExecutorService worker = mAsyncGLExecutorPool.getExecutor(i);
+            if (worker instanceof GLTaskExecutor && ((GLTaskExecutor)worker).isFull())
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Starts a transaction. The transaction belongs to the caller until it's passed to
+     * endTransaction(), so building one never blocks the compositor or the upload threads.
+     */
+    public Transaction beginTransaction() {
+        return new Transaction();
+    }
+
+    /**
+     * Publishes the given transaction, merging it with any that haven't been applied yet, and
+     * schedules it to be applied on the upload thread. Never blocks.
+     *
+     * The returned future completes once the transaction's uploads have been swapped in and its
+     * new origin and resolution have taken effect. Content that's invalidated again in the
+     * meantime shows up with the later transaction.
+     */
+    public UploadFuture<Void> endTransaction(Transaction transaction) {
+        TransactionRecord record = transaction.end();
+        while (true) {
+            TransactionRecord pending = mPendingTransaction.get();
+            TransactionRecord merged = (pending == null) ? record : pending.mergeWith(record);
+            if (mPendingTransaction.compareAndSet(pending, merged))
+                break;
+        }
+        scheduleApplyPendingTransaction();
+        return record.completions.get(0);
+    }
+
+    private void scheduleApplyPendingTransaction() {
+        if (!mApplyScheduled.compareAndSet(false, true))
+            return;
+
+        mAsyncGLExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Clear the flag first, so that transactions published from here on are either
+                // picked up below or get a task of their own.
+                mApplyScheduled.set(false);
+                applyTransaction(mPendingTransaction.getAndSet(null));
+            }
+        });
+    }
+
+    /** Runs on the upload thread. A null record applies no changes but uploads stale tiles. */
+    private void applyTransaction(TransactionRecord record) {
+        if (mDisposed) {
+            if (record != null)
+                completeAll(record.completions);
+            return;
+        }
+
+        int reduction = mRequestedReduction;
+        if (reduction != mReduction) {
+            mReduction = reduction;
+            for (Tile tile : mTiles)
+                tile.invalidate();
+        }
+
+        if (record == null) {
+            List<Runnable> noActions = Collections.emptyList();
+            List<UploadFuture<Void>> noCompletions = Collections.emptyList();
+            scheduleActions(noActions, noCompletions);
+        } else {
+            applyChanges(record);
+        }
+
+        if (mCompressionDelay >= 0)
+            scheduleCompression(mCompressionDelay);
+    }
+
+    /** Applies a transaction's invalidations, and schedules the uploads and other changes. */
+    private void applyChanges(TransactionRecord record) {
+        if (record.invalidateAll) {
+            for (Tile tile : mTiles)
+                tile.invalidate();
+        } else {
+            for (Rect rect : record.dirtyRects) {
+                for (Tile tile : mTiles) {
+                    if (Rect.intersects(tile.getBounds(), rect))
+                        tile.invalidate(rect);
+                }
+            }
+        }
+
+        // Changes to the origin and resolution take effect along with the uploads.
+        ArrayList<Runnable> actions = new ArrayList<Runnable>();
+        final Point newOrigin = record.origin;
+        if (newOrigin != null) {
+            actions.add(new Runnable() {
+                @Override
+                public void run() {
+                    mOrigin = newOrigin;
+                }
+            });
+        }
+        final float newResolution = record.resolution;
+        if (!Float.isNaN(newResolution)) {
+            actions.add(new Runnable() {
+                @Override
+                public void run() {
+                    mResolution = newResolution;
+                }
+            });
+        }
+        scheduleActions(actions, record.completions);
+    }
+
+    protected void scheduleActions(Collection<Runnable> actionQueue) {
+        List<UploadFuture<Void>> noCompletions = Collections.emptyList();
+        scheduleActions(actionQueue, noCompletions);
+    }
+
+    /**
+     * Schedules the uploads of the dirty tiles and the given actions, and completes the given
+     * futures once they've all taken effect.
+     */
+    private void scheduleActions(Collection<Runnable> actionQueue,
+                                 List<UploadFuture<Void>> completions) {
+        // Order the dirty tiles by their distance from the visible area, so that visible tiles
+        // are uploaded first.
+        ArrayList<Tile> dirtyTiles = null;
+        synchronized (mVisibleRect) {
+            // Until the layer is drawn, every tile counts as visible for ordering, but eviction
+            // treats every tile as off-screen; reloading evicted tiles then would only thrash.
+            boolean visibilityKnown = !mVisibleRect.isEmpty();
+            for (Tile tile : mTiles) {
+                if (tile.isUploadScheduled())
+                    continue;
+                tile.updateDistanceFrom(mVisibleRect);
+
+                // Tiles that were evicted while off-screen stay that way until they're visible.
+                if (tile.isEvicted() && (!visibilityKnown || tile.getDistance() > 0.0f))
+                    continue;
+
+                if (dirtyTiles == null)
+                    dirtyTiles = new ArrayList<Tile>();
+                dirtyTiles.add(tile);
+            }
+        }
+
+        if (dirtyTiles == null) {
+            // Transactions that change nothing are common, so don't allocate for them.
+            if (actionQueue.isEmpty()) {
+                completeAll(completions);
+                return;
+            }
+            dirtyTiles = new ArrayList<Tile>();
+        }
+        Collections.sort(dirtyTiles, TILE_DISTANCE_COMPARATOR);
+
+        // Schedule the uploads of the visible tiles, followed by the atomic buffer swaps, so that
+        // the visible area converges as soon as possible.
+        int tileIndex = 0;
+        while (tileIndex < dirtyTiles.size() && dirtyTiles.get(tileIndex).getDistance() == 0.0f)
+            tileIndex++;
+        // The futures complete with the last swap.
+        boolean offscreenTiles = tileIndex < dirtyTiles.size();
+        List<UploadFuture<Void>> noCompletions = Collections.emptyList();
+        scheduleUploadBatches(dirtyTiles.subList(0, tileIndex), actionQueue,
+                              GLTaskExecutor.PRIORITY_HIGH,
+                              offscreenTiles ? noCompletions : completions);
+
+        // Off-screen tiles are deferred until all the visible work has been done, nearest first.
+        if (offscreenTiles) {
+            List<Runnable> noActions = Collections.emptyList();
+            scheduleUploadBatches(dirtyTiles.subList(tileIndex, dirtyTiles.size()), noActions,
+                                  GLTaskExecutor.PRIORITY_LOW, completions);
+        }
+    }
+
+    private static void completeAll(List<UploadFuture<Void>> futures) {
+        for (UploadFuture<Void> future : futures)
+            future.complete(null);
+    }
+
+    /**
+     * Uploads the given tiles with one batch per worker, each ending in a single fence, then
+     * swaps all of them at once, performs the given actions and then completes the given futures.
+     * Workers that support priorities run the batches, and the swap, at the given one.
+     */
+    private void scheduleUploadBatches(List<Tile> tiles, Collection<Runnable> actionQueue,
+                                       int priority,
+                                       final List<UploadFuture<Void>> completions) {
+        LinkedHashMap<ExecutorService, UploadBatch> batches =
+            new LinkedHashMap<ExecutorService, UploadBatch>();
+        for (Tile tile : tiles) {
+            UploadBatch batch = batches.get(tile.getWorker());
+            if (batch == null) {
+                batch = new UploadBatch();
+                batches.put(tile.getWorker(), batch);
+            }
+            batch.add(tile, tile.scheduleUploadIfNecessary());
+        }
+
+        final ArrayList<UploadBatch> submittedBatches = new ArrayList<UploadBatch>();
+        for (Map.Entry<ExecutorService, UploadBatch> entry : batches.entrySet()) {
+            ExecutorService worker = entry.getKey();
+            UploadBatch batch = entry.getValue();
+            if (worker instanceof GLTaskExecutor) {
+                // Take over the uploads of an older batch that's still queued, if there is one.
+                BatchKey key = new BatchKey(worker, priority);
+                UploadBatch olderBatch = mSubmittedBatches.put(key, batch);
+                if (olderBatch != null && !olderBatch.isStarted())
+                    batch.replace(olderBatch);
+                batch.submit((GLTaskExecutor)worker, priority, key);
+            } else {
+                batch.submit(worker);
+            }
+            submittedBatches.add(batch);
+        }
+
+        final ArrayList<Runnable> actions = new ArrayList<Runnable>(actionQueue);
+        Runnable swap = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // Swap buffers for all the dirty tiles, once the GPU is done with them.
+                    // Batches on this worker were submitted first at the same priority, so
+                    // they're already done; the others run on different threads, so this can't
+                    // deadlock.
+                    for (UploadBatch batch : submittedBatches)
+                        batch.waitForCompletion();
+                    swapBuffersIfNecessary();
+                } catch (RuntimeException e) {
+                    for (UploadFuture<Void> completion : completions)
+                        completion.fail(e);
+                    throw e;
+                }
+
+                // Perform the queued actions (including updating the origin and resolution),
+                // and then report that they've taken effect.
+                for (Runnable action : actions)
+                    mAsyncGLExecutor.execute(action);
+                if (!completions.isEmpty()) {
+                    mAsyncGLExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            completeAll(completions);
+                        }
+                    });
+                }
+            }
+        };
+
+        // Nothing waits on the swap itself; its effects are reported through the futures.
+        if (mAsyncGLExecutor instanceof GLTaskExecutor)
+            ((GLTaskExecutor)mAsyncGLExecutor).submit(swap, priority);
+        else
+            mAsyncGLExecutor.execute(swap);
+    }
+
+    /** Swaps every tile with a freshly-uploaded back texture, atomically with respect to draw(). */
+    private void swapBuffersIfNecessary() {
+        boolean refinementNeeded = false;
+        synchronized (mSwapLock) {
+            long swapTime = System.nanoTime();
+            for (Tile tile : mTiles)
+                refinementNeeded |= tile.swapBuffersIfNecessary(swapTime);
+        }
+
+        // The old front textures may be evictable now that they're back textures.
+        TextureMemoryBudget.getInstance().enforceBudget();
+
+        // Follow previews up with their full-resolution uploads.
+        if (refinementNeeded)
+            scheduleApplyPendingTransaction();
+    }
+
+    /** Identifies the queued batch of one of a layer's workers at one priority. */
+    private final class BatchKey {
+        private final ExecutorService mWorker;
+        private final int mPriority;
+
+        public BatchKey(ExecutorService worker, int priority) {
+            mWorker = worker;
+            mPriority = priority;
+        }
+
+        private TiledLayer getLayer() {
+            return TiledLayer.this;
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (!(object instanceof BatchKey))
+                return false;
+            BatchKey other = (BatchKey)object;
+            return other.getLayer() == TiledLayer.this && other.mWorker == mWorker &&
+                   other.mPriority == mPriority;
+        }
+
+        @Override
+        public int hashCode() {
+            return (System.identityHashCode(TiledLayer.this) * 31 +
+                    System.identityHashCode(mWorker)) * 31 + mPriority;
+        }
+    }
+
+    /**
+     * The uploads of one transaction that are assigned to one worker. Tiles invalidated after
+     * being scheduled have had their uploads cancelled, and are skipped.
+     */
+    private static class UploadBatch implements Callable<GLFence> {
+        private final ArrayList<Tile> mTiles;
+        private final ArrayList<FutureTask<?>> mUploads;
+        private Future<GLFence> mFuture;
+        // The batch that took over this one's uploads, if any. Whoever waits for this batch
+        // waits for that one too.
+        private volatile UploadBatch mReplacement;
+        private volatile boolean mStarted;
+        // Set once the GPU has finished every upload in the batch.
+        private volatile boolean mCompleted;
+
+        public UploadBatch() {
+            mTiles = new ArrayList<Tile>();
+            mUploads = new ArrayList<FutureTask<?>>();
+        }
+
+        public void add(Tile tile, FutureTask<?> upload) {
+            mTiles.add(tile);
+            mUploads.add(upload);
+        }
+
+        /**
+         * Takes over the outstanding uploads of the given older batch, to be submitted in its
+         * place. If the older batch starts anyway, each upload still only runs once.
+         */
+        public void replace(UploadBatch olderBatch) {
+            ArrayList<Tile> tiles = new ArrayList<Tile>();
+            ArrayList<FutureTask<?>> uploads = new ArrayList<FutureTask<?>>();
+            for (int i = 0; i < olderBatch.mUploads.size(); i++) {
+                FutureTask<?> upload = olderBatch.mUploads.get(i);
+                if (!upload.isDone() && !mUploads.contains(upload)) {
+                    tiles.add(olderBatch.mTiles.get(i));
+                    uploads.add(upload);
+                }
+            }
+
+            // The older uploads have waited longer, so they go first.
+            mTiles.addAll(0, tiles);
+            mUploads.addAll(0, uploads);
+            olderBatch.mReplacement = this;
+        }
+
+        public void submit(ExecutorService worker) {
+            mFuture = worker.submit(this);
+        }
+
+        /** Submits the batch, replacing the queued batch with the same key. */
+        public void submit(GLTaskExecutor worker, int priority, Object key) {
+            mFuture = worker.submit(this, priority, key);
+        }
+
+        public boolean isStarted() {
+            return mStarted;
+        }
+
+        @Override
+        public GLFence call() {
+            mStarted = true;
+            for (int i = 0; i < mUploads.size(); i++) {
+                FutureTask<?> upload = mUploads.get(i);
+                if (upload.isDone())
+                    continue;   // Cancelled, or run by a batch that this one replaced.
+
+                // Claim the tile first, so that no other transaction swaps it before our fence
+                // has been waited on.
+                mTiles.get(i).setPendingBatch(this);
+                upload.run();
+            }
+
+            // One synchronization point for the whole batch.
+            return GLFence.insert();
+        }
+
+        /** Waits for the batch to be submitted and then for the GPU to finish it. */
+        public void waitForCompletion() {
+            UploadBatch replacement = mReplacement;
+            if (replacement != null)
+                replacement.waitForCompletion();
+
+            // A replaced batch is cancelled unless it had already started.
+            if (!mFuture.isCancelled()) {
+                GLFence fence;
+                try {
+                    fence = mFuture.get();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                } catch (ExecutionException e) {
+                    throw new RuntimeException(e);
+                }
+
+                fence.waitForCompletion();
+                fence.dispose();
+            }
+            mCompleted = true;
+        }
+
+        public boolean isCompleted() {
+            return mCompleted;
+        }
+    }
+
+    /** A tile's upload, which counts as queued in the metrics until it starts or is cancelled. */
+    private final class UploadTask extends FutureTask<Void> {
+        private final long mQueuedTime;
+        // Set once the task has left the queue, by starting or by being cancelled.
+        private final AtomicBoolean mDequeued;
+
+        public UploadTask(Runnable upload, long queuedTime) {
+            super(upload, null);
+            mQueuedTime = queuedTime;
+            mDequeued = new AtomicBoolean();
+            mMetrics.noteUploadQueued();
+        }
+
+        @Override
+        public void run() {
+            if (mDequeued.compareAndSet(false, true))
+                mMetrics.noteUploadStarted(mQueuedTime, System.nanoTime());
+            super.run();
+        }
+
+        @Override
+        protected void done() {
+            if (isCancelled() && mDequeued.compareAndSet(false, true))
+                mMetrics.noteUploadCancelled();
+        }
+    }
+
+    private static final Comparator<Tile> TILE_DISTANCE_COMPARATOR = new Comparator<Tile>() {
+        @Override
+        public int compare(Tile a, Tile b) {
+            return Float.compare(a.getDistance(), b.getDistance());
+        }
+    };
+
+    /**
+     * Returns the fraction of a tile's area that may be dirty before the tile is uploaded in
+     * its entirety rather than with partial updates.
+     */
+    public float getFullUploadThreshold() {
+        return mFullUploadThreshold;
+    }
+
+    /**
+     * Sets the fraction of a tile's area that may be dirty before the tile is uploaded in its
+     * entirety. A value of 0 disables partial uploads; a value of 1 always uses them.
+     */
+    public void setFullUploadThreshold(float threshold) {
+        mFullUploadThreshold = threshold;
+    }
+
+    /** Returns the layer origin. */
+    public Point getOrigin() {
+        return mOrigin;
+    }
+
+    /** Returns the layer resolution. */
+    public float getResolution() {
+        return mResolution;
+    }
+
+    /**
+     * Returns a direct buffer of at least the given size, cleared and ready for writing. Each
+     * thread has its own.
+     */
+    private static ByteBuffer getScratchBuffer(int size) {
+        return getThreadBuffer(sScratchBuffer, size);
+    }
+
+    /** Like getScratchBuffer(), but returns a different buffer. */
+    private static ByteBuffer getReductionBuffer(int size) {
+        return getThreadBuffer(sReductionBuffer, size);
+    }
+
+    private static ByteBuffer getThreadBuffer(ThreadLocal<ByteBuffer> threadBuffer, int size) {
+        ByteBuffer buffer = threadBuffer.get();
+        if (buffer == null || buffer.capacity() < size) {
+            buffer = ByteBuffer.allocateDirect(size);
+            threadBuffer.set(buffer);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns the GL_UNPACK_ALIGNMENT under which rows of the given length are the given stride
+     * apart, or 0 if there is none.
+     */
+    private static int getUnpackAlignment(int rowBytes, int stride) {
+        for (int alignment = 8; alignment > 0; alignment /= 2) {
+            if ((rowBytes + alignment - 1) / alignment * alignment == stride)
+                return alignment;
+        }
+        return 0;
+    }
+
+    /** Sets the unpack alignment of the current thread's context, if it isn't set already. */
+    private static void setUnpackAlignment(int alignment) {
+        Integer currentAlignment = sUnpackAlignment.get();
+        if (currentAlignment == null ? alignment == 4 : currentAlignment == alignment)
+            return;
+        GLBackends.getGLBackend().glPixelStorei(GLES11.GL_UNPACK_ALIGNMENT, alignment);
+        sUnpackAlignment.set(alignment);
+    }
+
+    /**
+     * Given the intrinsic size of the layer, stores the pixel boundaries of the layer rect into
+     * the given result rect.
+     */
+    protected void getBounds(RenderContext context, RectF rect, RectF result) {
+        float scaleFactor = context.zoomFactor / mResolution;
+        float x = (rect.left + mOrigin.x) * scaleFactor, y = (rect.top + mOrigin.y) * scaleFactor;
+        float width = rect.width() * scaleFactor, height = rect.height() * scaleFactor;
+        result.set(x, y, x + width, y + height);
+    }
+
+    private class Tile implements TextureMemoryBudget.Client {
+        // Textures are acquired lazily on the upload thread and may be evicted to stay within
+        // the texture memory budget, so either of these may be zero.
+        private int mFrontTextureID, mBackTextureID;
+        // What the compositor has set on each texture; swapped along with the IDs.
+        private GLStateTracker.TextureState mFrontTextureState, mBackTextureState;
+        // Whether each texture holds ETC1 data, which can't be updated; swapped along with the
+        // IDs. Compressed textures are never returned to the pool for reuse.
+        private boolean mFrontCompressed, mBackCompressed;
+        // The factor that each texture was shrunk by; swapped along with the IDs.
+        private int mFrontReduction, mBackReduction;
+        // The area of the image that this tile covers, in layer coordinates.
+        private final Rect mBounds;
+        // The same, along with the crop rect that draws the whole front texture, cached for
+        // draw().
+        private final RectF mBoundsF;
+        private final int[] mCropRect;
+
+        // The Cairo format the textures were allocated with, for returning them to the pool.
+        private final int mFormat;
+        // Converts the image's pixels to that format, if it differs.
+        private final PixelConverter mConverter;
+        // Whether the front texture has ever received content. Pooled textures start out with
+        // undefined contents, so we don't draw until the first swap.
+        private boolean mFrontValid;
+        // Whether the front texture was evicted, leaving the tile with nothing to draw.
+        private boolean mEvicted;
+        // Whether dispose() has been called, after which no textures may be acquired.
+        private boolean mDisposed;
+        // The tile's account with the texture memory budget.
+        private final TextureMemoryBudget.Registration mBudgetRegistration;
+        // Whether the tile was visible the last time it was drawn.
+        private boolean mVisible;
+        // Whether an upload into the back texture is in progress.
+        private boolean mUploading;
+        // The worker that uploads this tile. Always the same one, so that the back texture is
+        // never written by two workers at once.
+        private final ExecutorService mWorker;
+
+        // The tile-relative area that has been invalidated but not yet uploaded anywhere.
+        private final Rect mDirtyRect;
+        // The area uploaded into the back texture since the last swap. After the swap, this is
+        // the area that the new back texture is missing.
+        private final Rect mUploadedRect;
+        // The area in which the back texture is out of date with respect to the front texture.
+        private final Rect mBackStaleRect;
+
+        // A future that represents the current upload state of this texture:
+        //
+        // * If this is null, the texture is dirty and the task to upload it has not been enqueued.
+        //   (It will be enqueued at the next call to endTransaction().)
+        // * If this is an unresolved future, the texture is dirty and the task to upload it has
+        //   been enqueued.
+        // * If this is a resolved future, the texture is valid.
+        private FutureTask<?> mUploadFuture;
+        private boolean mSwapNeeded;
+        // When the oldest upload awaiting the swap was queued, and when the newest finished, on
+        // the System.nanoTime() clock.
+        private long mSwapQueuedTime, mSwapFinishTime;
+        // The batch that last uploaded into the back texture. The swap waits for it to complete.
+        private UploadBatch mPendingBatch;
+
+        // Bumped whenever the contents change or the front texture is dropped, so that uploads
+        // and compressed copies of the old contents can be recognized as stale.
+        private int mGeneration;
+        // When the tile was last invalidated, in milliseconds on the System.nanoTime() clock.
+        private long mLastInvalidationTime;
+        // Whether a compressed copy of the tile is being made.
+        private boolean mCompressing;
+        // The generation whose contents were last uploaded as a preview, so that it's only done
+        // once for each change.
+        private int mPreviewGeneration;
+        // Whether the back texture holds a preview, which must be refined after the swap.
+        private boolean mRefinementNeeded;
+
+        // The distance from the visible area when uploads were last scheduled; zero if visible.
+        // Only touched on the upload thread, while a transaction is being applied.
+        private float mDistance;
+
+        public Tile(Rect bounds, ExecutorService worker) {
+            mBounds = new Rect(bounds);
+            mBoundsF = new RectF(bounds);
+            mFrontReduction = mBackReduction = 1;
+            mCropRect = new int[] { 0, bounds.height(), bounds.width(), -bounds.height() };
+            mFrontTextureState = new GLStateTracker.TextureState();
+            mBackTextureState = new GLStateTracker.TextureState();
+            mWorker = worker;
+
+            mDirtyRect = new Rect(0, 0, bounds.width(), bounds.height());
+            mUploadedRect = new Rect();
+            mBackStaleRect = new Rect();
+
+            mConverter = mPixelConverter;
+            mFormat = (mConverter == null) ? mImageBuffer.getFormat() :
+                                             mConverter.getTargetFormat();
+            mPreviewGeneration = -1;
+            mBudgetRegistration = TextureMemoryBudget.getInstance().register(this);
+            mLastInvalidationTime = System.nanoTime() / 1000000L;
+        }
+
+        private int getTextureWidth(int reduction) {
+            return BoxFilter.getReducedLength(mBounds.width(), reduction);
+        }
+
+        private int getTextureHeight(int reduction) {
+            return BoxFilter.getReducedLength(mBounds.height(), reduction);
+        }
+
+        private int getTextureBytes(int reduction) {
+            return getTextureWidth(reduction) * getTextureHeight(reduction) *
+                   CairoUtils.bitsPerPixelForCairoFormat(mFormat) / 8;
+        }
+
+        private int getCompressedTextureBytes() {
+            return ETC1Encoder.getEncodedSize(mBounds.width(), mBounds.height());
+        }
+
+        /**
+         * Gives a texture back to the pool, to be reused if possible, and returns the number of
+         * bytes that it held.
+         */
+        private long releaseTexture(int textureID, boolean compressed, int reduction,
+                                    boolean reusable) {
+            TexturePool pool = mTexturePool;
+            if (compressed) {
+                pool.discard(textureID);
+                return getCompressedTextureBytes();
+            }
+
+            if (reusable) {
+                pool.release(textureID, getTextureWidth(reduction), getTextureHeight(reduction),
+                             mFormat);
+            } else {
+                pool.discard(textureID);
+            }
+            return getTextureBytes(reduction);
+        }
+
+        /** Returns the textures to the pool. Requires no GL context, so it's safe anywhere. */
+        public void dispose() {
+            synchronized (this) {
+                mDisposed = true;
+                cancelUpload();
+                mGeneration++;
+                mSwapNeeded = false;
+
+                if (mFrontTextureID != 0)
+                    releaseTexture(mFrontTextureID, mFrontCompressed, mFrontReduction, true);
+                if (mBackTextureID != 0)
+                    releaseTexture(mBackTextureID, mBackCompressed, mBackReduction, true);
+                mFrontTextureID = mBackTextureID = 0;
+                mFrontCompressed = mBackCompressed = false;
+                mFrontValid = false;
+            }
+            TextureMemoryBudget.getInstance().unregister(mBudgetRegistration);
+        }
+
+        /**
+         * Evicts the back texture if it's idle, and the front texture too if the tile is
+         * off-screen. An evicted front texture is re-uploaded once the tile becomes visible.
+         */
+        @Override
+        public long evictTextures() {
+            long bytes = 0;
+            synchronized (this) {
+                if (mUploading || mSwapNeeded)
+                    return 0;
+
+                if (mBackTextureID != 0) {
+                    bytes += releaseTexture(mBackTextureID, mBackCompressed,
+                                            mBackReduction, false);
+                    mBackTextureID = 0;
+                    mBackCompressed = false;
+                    mBackStaleRect.setEmpty();
+                }
+
+                if (!mVisible && mFrontTextureID != 0) {
+                    bytes += releaseTexture(mFrontTextureID, mFrontCompressed,
+                                            mFrontReduction, false);
+                    mFrontTextureID = 0;
+                    mFrontCompressed = false;
+                    mFrontValid = false;
+                    mEvicted = true;
+                    mGeneration++;
+                    mDirtyRect.set(0, 0, mBounds.width(), mBounds.height());
+                    cancelUpload();
+                }
+            }
+
+            TextureMemoryBudget.getInstance().free(mBudgetRegistration, bytes);
+            return bytes;
+        }
+
+        public synchronized boolean isEvicted() {
+            return mEvicted;
+        }
+
+        @Override
+        protected void finalize() throws Throwable {
+            dispose();
+        }
+
+        public Rect getBounds() {
+            return mBounds;
+        }
+
+        public float getDistance() {
+            return mDistance;
+        }
+
+        /**
+         * Records the Manhattan distance between this tile and the given rect, in layer
+         * coordinates. An empty rect means that nothing is known about visibility, in which case
+         * every tile is considered visible.
+         */
+        public void updateDistanceFrom(RectF visibleRect) {
+            if (visibleRect.isEmpty()) {
+                mDistance = 0.0f;
+                return;
+            }
+
+            float dx = Math.max(0.0f, Math.max(visibleRect.left - mBounds.right,
+                                               mBounds.left - visibleRect.right));
+            float dy = Math.max(0.0f, Math.max(visibleRect.top - mBounds.bottom,
+                                               mBounds.top - visibleRect.bottom));
+            mDistance = dx + dy;
+        }
+
+        public synchronized boolean isUploadScheduled() {
+            return mUploadFuture != null;
+        }
+
+        public ExecutorService getWorker() {
+            return mWorker;
+        }
+
+        /**
+         * Creates the upload task if it doesn't exist yet and returns it. The caller is
+         * responsible for running it on this tile's worker.
+         */
+        public synchronized FutureTask<?> scheduleUploadIfNecessary() {
+            if (mUploadFuture != null)
+                return mUploadFuture;
+
+            final long queuedTime = System.nanoTime();
+            mUploadFuture = new UploadTask(new Runnable() {
+                @Override
+                public void run() {
+                    updateTextureImage(queuedTime);
+                }
+            }, queuedTime);
+            return mUploadFuture;
+        }
+
+        /** Invalidates the given rect, which is in layer coordinates. */
+        public synchronized void invalidate(Rect rect) {
+            Rect tileRect = new Rect(rect);
+            if (!tileRect.intersect(mBounds))
+                return;
+
+            tileRect.offset(-mBounds.left, -mBounds.top);
+            mDirtyRect.union(tileRect);
+            noteContentsChanged();
+        }
+
+        public synchronized void invalidate() {
+            mDirtyRect.set(0, 0, mBounds.width(), mBounds.height());
+            noteContentsChanged();
+        }
+
+        private void noteContentsChanged() {
+            cancelUpload();
+            mGeneration++;
+            mLastInvalidationTime = System.nanoTime() / 1000000L;
+        }
+
+        private void cancelUpload() {
+            if (mUploadFuture == null)
+                return;
+            mUploadFuture.cancel(false);
+            mUploadFuture = null;
+        }
+
+        /**
+         * Draws the front texture, if there is one. Returns true if the tile is visible but was
+         * evicted and has no upload scheduled to bring it back.
+         */
+        public boolean draw(RenderContext context) {
+            RectF bounds = mDrawBounds;
+            TiledLayer.this.getBounds(context, mBoundsF, bounds);
+            RectF viewport = context.viewport;
+            boolean visible = RectF.intersects(bounds, viewport);
+            synchronized (this) {
+                mVisible = visible;
+                if (!visible)
+                    return false;   // Entirely off-screen.
+                if (!mFrontValid)
+                    return mEvicted && mUploadFuture == null;
+                drawFrontTexture(bounds, viewport);
+            }
+
+            // Keep visible tiles at the back of the eviction queue.
+            TextureMemoryBudget.getInstance().touch(mBudgetRegistration);
+            return false;
+        }
+
+        private void drawFrontTexture(RectF bounds, RectF viewport) {
+            GLStateTracker state = GLStateTracker.getInstance();
+            state.bindTexture(mFrontTextureID);
+            state.setFilters(mFrontTextureState, GLES11.GL_NEAREST, GLES11.GL_LINEAR);
+            state.setCropRect(mFrontTextureState, mCropRect);
+
+            GLBackend gl = GLBackends.getGLBackend();
+            float drawHeight = bounds.height();
+            float left = bounds.left - viewport.left;
+            float top = viewport.height() - (bounds.top + drawHeight - viewport.top);
+            gl.glDrawTexfOES(left, top, 0.0f, bounds.width(), drawHeight);
+        }
+
+        private void updateTextureImage(long queuedTime) {
+            Rect uploadRect;
+            boolean fullUpload;
+            int textureID;
+            int generation;
+            int reduction = mReduction;
+            long freedBytes = 0;
+            synchronized (this) {
+                generation = mGeneration;
+                boolean preview = isPreviewNeeded(reduction);
+                if (preview) {
+                    reduction = Math.min(reduction * PREVIEW_REDUCTION, MAX_REDUCTION);
+                    mPreviewGeneration = mGeneration;
+                }
+
+                textureID = mBackTextureID;
+                // A texture of the wrong resolution is of no use, even partially.
+                if (textureID != 0 && mBackReduction != reduction) {
+                    freedBytes = releaseTexture(textureID, mBackCompressed, mBackReduction, true);
+                    mBackTextureID = textureID = 0;
+                    mBackCompressed = false;
+                }
+
+                if (preview) {
+                    // Leave the tile dirty, for the refinement to pick up after the swap.
+                    uploadRect = new Rect(0, 0, mBounds.width(), mBounds.height());
+                    fullUpload = true;
+                    mRefinementNeeded = true;
+                } else {
+                    // Determine what the back texture is missing: anything newly invalidated,
+                    // plus anything that was uploaded to the front texture but never made it here.
+                    uploadRect = new Rect(mDirtyRect);
+                    uploadRect.union(mBackStaleRect);
+                    mUploadedRect.union(mDirtyRect);
+                    mDirtyRect.setEmpty();
+                    mBackStaleRect.setEmpty();
+
+                    int uploadArea = uploadRect.width() * uploadRect.height();
+                    int tileArea = mBounds.width() * mBounds.height();
+                    // A freshly-acquired texture has undefined contents, so it needs everything.
+                    fullUpload = textureID == 0 || uploadArea > tileArea * mFullUploadThreshold;
+
+                    if (uploadRect.isEmpty() && textureID != 0)
+                        return;
+                }
+                mUploading = true;
+            }
+            if (freedBytes > 0)
+                TextureMemoryBudget.getInstance().free(mBudgetRegistration, freedBytes);
+
+            try {
+                // Wait for a frame with room for the upload. The tile may well be invalidated in
+                // the meantime, in which case the check below abandons it.
+                long bytes = fullUpload ? getTextureBytes(reduction) :
+                                          getUploadBytes(uploadRect, reduction);
+                if (mUploadScheduler != null)
+                    mUploadScheduler.acquire(bytes, mDistance == 0.0f);
+
+                if (textureID == 0)
+                    textureID = acquireBackTexture(reduction);
+
+                // Cancelling the task doesn't stop it once it has started, so check whether the
+                // contents have changed since, both before and after reading the image.
+                synchronized (this) {
+                    if (generation != mGeneration) {
+                        abandonUpload(uploadRect, fullUpload, false);
+                        return;
+                    }
+                }
+
+                long startTime = System.nanoTime();
+                uploadRect(textureID, uploadRect, fullUpload, reduction);
+                long finishTime = System.nanoTime();
+                if (mUploadScheduler != null)
+                    mUploadScheduler.complete(finishTime - startTime);
+                mMetrics.noteUploadFinished(bytes, finishTime - startTime);
+
+                // The batch this upload is part of inserts a fence once all of its uploads have
+                // been submitted, and the swap waits for that.
+                synchronized (this) {
+                    if (generation != mGeneration) {
+                        abandonUpload(uploadRect, fullUpload, true);
+                        return;
+                    }
+                    if (!mSwapNeeded)
+                        mSwapQueuedTime = queuedTime;
+                    mSwapFinishTime = finishTime;
+                    mSwapNeeded = true;
+                    mEvicted = false;
+                }
+            } finally {
+                synchronized (this) {
+                    mUploading = false;
+                }
+            }
+
+            // Textures that were busy uploading when the budget was last enforced may be
+            // evictable now.
+            TextureMemoryBudget.getInstance().enforceBudget();
+        }
+
+        /** Returns the size of the texels that cover the given tile-relative rect. */
+        private long getUploadBytes(Rect rect, int reduction) {
+            int width = BoxFilter.getReducedLength(rect.right, reduction) - rect.left / reduction;
+            int height = BoxFilter.getReducedLength(rect.bottom, reduction) - rect.top / reduction;
+            return (long)width * height * CairoUtils.bitsPerPixelForCairoFormat(mFormat) / 8;
+        }
+
+        /**
+         * Gives up on an upload whose contents were invalidated while it ran, leaving its rect
+         * for the upload that the invalidation scheduled. If the back texture has been written,
+         * what it holds may be torn, so it isn't swapped in until that upload has repaired it.
+         */
+        private void abandonUpload(Rect uploadRect, boolean fullUpload, boolean textureWritten) {
+            // A full upload may be into a fresh texture, with undefined contents.
+            if (fullUpload)
+                mDirtyRect.set(0, 0, mBounds.width(), mBounds.height());
+            else
+                mDirtyRect.union(uploadRect);
+            mRefinementNeeded = false;
+            if (textureWritten)
+                mSwapNeeded = false;
+            mMetrics.noteUploadSuperseded();
+        }
+
+        /**
+         * Returns true if the next upload should be a preview: the tile is visible and mostly
+         * dirty, and this change hasn't been previewed yet.
+         */
+        private boolean isPreviewNeeded(int reduction) {
+            if (!mProgressive || mDistance > 0.0f || mPreviewGeneration == mGeneration ||
+                    reduction >= MAX_REDUCTION) {
+                return false;
+            }
+            int dirtyArea = mDirtyRect.width() * mDirtyRect.height();
+            return dirtyArea > mBounds.width() * mBounds.height() * mFullUploadThreshold;
+        }
+
+        /** Returns a fresh back texture, or zero if the tile has been disposed. */
+        private int acquireBackTexture(int reduction) {
+            TexturePool pool = mTexturePool;
+            int width = getTextureWidth(reduction), height = getTextureHeight(reduction);
+            int textureID = pool.acquire(width, height, mFormat);
+            synchronized (this) {
+                if (mDisposed) {
+                    pool.release(textureID, width, height, mFormat);
+                    return 0;
+                }
+                mBackTextureID = textureID;
+                mBackCompressed = false;
+                mBackReduction = reduction;
+                mBackTextureState.reset();
+            }
+            TextureMemoryBudget.getInstance().allocate(mBudgetRegistration,
+                                                       getTextureBytes(reduction));
+            return textureID;
+        }
+
+        private void uploadRect(int textureID, Rect uploadRect, boolean fullUpload,
+                                int reduction) {
+            GLBackend gl = GLBackends.getGLBackend();
+            gl.glBindTexture(GLES11.GL_TEXTURE_2D, textureID);
+
+            int imageFormat = mImageBuffer.getFormat();
+            int stride = mImageBuffer.getStride();
+            CairoGLInfo glInfo = new CairoGLInfo(mFormat);
+            ByteBuffer viewBuffer = mImageBuffer.getBuffer().slice();
+            int bytesPerPixel = CairoUtils.bitsPerPixelForCairoFormat(imageFormat) / 8;
+
+            if (fullUpload)
+                uploadRect.set(0, 0, mBounds.width(), mBounds.height());
+
+            // The pool has already specified the texture storage, so even full uploads only
+            // need to replace the contents.
+            int rowBytes = uploadRect.width() * bytesPerPixel;
+            int alignment = getUnpackAlignment(rowBytes, stride);
+            if (reduction > 1) {
+                uploadReducedRect(glInfo, viewBuffer, stride, uploadRect, reduction);
+            } else if (mConverter != null) {
+                // Convert the rows into a tightly-packed buffer in the texture's format.
+                int convertedRowBytes = uploadRect.width() *
+                                        CairoUtils.bitsPerPixelForCairoFormat(mFormat) / 8;
+                ByteBuffer convertedBuffer = getScratchBuffer(convertedRowBytes *
+                                                              uploadRect.height());
+                viewBuffer.position(getImageOffset(uploadRect.left, uploadRect.top, stride,
+                                                   bytesPerPixel));
+                mConverter.convert(viewBuffer, stride, uploadRect.width(), uploadRect.height(),
+                                   convertedBuffer);
+                convertedBuffer.flip();
+
+                setUnpackAlignment(getUnpackAlignment(convertedRowBytes, convertedRowBytes));
+                gl.glTexSubImage2D(GLES11.GL_TEXTURE_2D, 0, uploadRect.left, uploadRect.top,
+                                   uploadRect.width(), uploadRect.height(), glInfo.format,
+                                   glInfo.type, convertedBuffer);
+            } else if (alignment != 0) {
+                // The image's row padding is what GL expects, so upload the rows in place.
+                setUnpackAlignment(alignment);
+                viewBuffer.position(getImageOffset(uploadRect.left, uploadRect.top, stride,
+                                                   bytesPerPixel));
+                gl.glTexSubImage2D(GLES11.GL_TEXTURE_2D, 0, uploadRect.left, uploadRect.top,
+                                   uploadRect.width(), uploadRect.height(), glInfo.format,
+                                   glInfo.type, viewBuffer);
+            } else if (uploadRect.height() <= MAX_ROW_BY_ROW_UPLOAD_HEIGHT) {
+                // OpenGL ES 1.1 has no GL_UNPACK_ROW_LENGTH. For a few rows, uploading each in
+                // place is cheaper than gathering them.
+                setUnpackAlignment(getUnpackAlignment(rowBytes, rowBytes));
+                for (int y = uploadRect.top; y < uploadRect.bottom; y++) {
+                    viewBuffer.position(getImageOffset(uploadRect.left, y, stride,
+                                                       bytesPerPixel));
+                    gl.glTexSubImage2D(GLES11.GL_TEXTURE_2D, 0, uploadRect.left, y,
+                                       uploadRect.width(), 1, glInfo.format, glInfo.type,
+                                       viewBuffer);
+                }
+            } else {
+                // Otherwise, gather the rows into a tightly-packed buffer first.
+                setUnpackAlignment(getUnpackAlignment(rowBytes, rowBytes));
+                Buffer packedBuffer = packSubImage(viewBuffer, stride, uploadRect,
+                                                   bytesPerPixel);
+                gl.glTexSubImage2D(GLES11.GL_TEXTURE_2D, 0, uploadRect.left, uploadRect.top,
+                                   uploadRect.width(), uploadRect.height(), glInfo.format,
+                                   glInfo.type, packedBuffer);
+            }
+        }
+
+        /**
+         * Shrinks the given tile-relative rect of the image by the given factor, converts it if
+         * necessary, and uploads it to the texels that cover it.
+         */
+        private void uploadReducedRect(CairoGLInfo glInfo, ByteBuffer viewBuffer, int stride,
+                                       Rect uploadRect, int reduction) {
+            // Round the rect out to whole blocks of image pixels, clipped to the tile.
+            int left = uploadRect.left / reduction, top = uploadRect.top / reduction;
+            int right = BoxFilter.getReducedLength(uploadRect.right, reduction);
+            int bottom = BoxFilter.getReducedLength(uploadRect.bottom, reduction);
+            int width = right - left, height = bottom - top;
+            int sourceWidth = Math.min(right * reduction, mBounds.width()) - left * reduction;
+            int sourceHeight = Math.min(bottom * reduction, mBounds.height()) - top * reduction;
+
+            int imageFormat = mImageBuffer.getFormat();
+            int bytesPerPixel = CairoUtils.bitsPerPixelForCairoFormat(imageFormat) / 8;
+            int reducedRowBytes = width * bytesPerPixel;
+            ByteBuffer reducedBuffer = getReductionBuffer(reducedRowBytes * height);
+            viewBuffer.position(getImageOffset(left * reduction, top * reduction, stride,
+                                               bytesPerPixel));
+            BoxFilter.downsample(viewBuffer, stride, sourceWidth, sourceHeight, reduction,
+                                 imageFormat, reducedBuffer);
+            reducedBuffer.flip();
+
+            ByteBuffer uploadBuffer = reducedBuffer;
+            int uploadRowBytes = reducedRowBytes;
+            if (mConverter != null) {
+                uploadRowBytes = width * CairoUtils.bitsPerPixelForCairoFormat(mFormat) / 8;
+                uploadBuffer = getScratchBuffer(uploadRowBytes * height);
+                mConverter.convert(reducedBuffer, reducedRowBytes, width, height, uploadBuffer);
+                uploadBuffer.flip();
+            }
+
+            setUnpackAlignment(getUnpackAlignment(uploadRowBytes, uploadRowBytes));
+            GLBackends.getGLBackend().glTexSubImage2D(GLES11.GL_TEXTURE_2D, 0, left, top, width,
+                                                      height, glInfo.format, glInfo.type,
+                                                      uploadBuffer);
+        }
+
+        /** Returns the offset in the image of the given tile-relative point. */
+        private int getImageOffset(int x, int y, int stride, int bytesPerPixel) {
+            return (mBounds.top + y) * stride + (mBounds.left + x) * bytesPerPixel;
+        }
+
+        /** Copies the given tile-relative rect out of the image into a tightly-packed buffer. */
+        private ByteBuffer packSubImage(ByteBuffer imageBuffer, int stride, Rect rect,
+                                        int bytesPerPixel) {
+            int rowBytes = rect.width() * bytesPerPixel;
+            ByteBuffer packedBuffer = getScratchBuffer(rowBytes * rect.height());
+            for (int y = rect.top; y < rect.bottom; y++) {
+                int rowStart = getImageOffset(rect.left, y, stride, bytesPerPixel);
+                imageBuffer.limit(rowStart + rowBytes);
+                imageBuffer.position(rowStart);
+                packedBuffer.put(imageBuffer);
+            }
+            packedBuffer.flip();
+            return packedBuffer;
+        }
+
+        public synchronized void setPendingBatch(UploadBatch batch) {
+            mPendingBatch = batch;
+        }
+
+        /** Swaps in the back texture if it's ready. Returns true if it's a preview to refine. */
+        public synchronized boolean swapBuffersIfNecessary(long swapTime) {
+            if (!mSwapNeeded || (mPendingBatch != null && !mPendingBatch.isCompleted()))
+                return false;
+
+            mMetrics.noteSwap(mSwapQueuedTime, mSwapFinishTime, swapTime);
+            swapTextures();
+            mFrontValid = true;
+            mPendingBatch = null;
+
+            // The new back texture lacks everything we just uploaded.
+            mBackStaleRect.union(mUploadedRect);
+            mUploadedRect.setEmpty();
+
+            // A compressed texture can't be updated, and one of the old resolution would have to
+            // be replaced in full, so the next upload needs a fresh one.
+            if (mBackTextureID != 0 && (mBackCompressed || mBackReduction != mFrontReduction)) {
+                long bytes = releaseTexture(mBackTextureID, mBackCompressed, mBackReduction, true);
+                mBackTextureID = 0;
+                mBackCompressed = false;
+                mBackStaleRect.setEmpty();
+                TextureMemoryBudget.getInstance().free(mBudgetRegistration, bytes);
+            }
+
+            mSwapNeeded = false;
+
+            // The tile is still dirty, so it only needs another upload task. If it was
+            // invalidated again, it already has one, and will get a new preview instead.
+            boolean refinementNeeded = mRefinementNeeded;
+            mRefinementNeeded = false;
+            if (refinementNeeded && mUploadFuture != null && mUploadFuture.isDone())
+                mUploadFuture = null;
+            return refinementNeeded;
+        }
+
+        private void swapTextures() {
+            int tmp = mFrontTextureID;
+            mFrontTextureID = mBackTextureID;
+            mBackTextureID = tmp;
+            GLStateTracker.TextureState tmpState = mFrontTextureState;
+            mFrontTextureState = mBackTextureState;
+            mBackTextureState = tmpState;
+            boolean tmpCompressed = mFrontCompressed;
+            mFrontCompressed = mBackCompressed;
+            mBackCompressed = tmpCompressed;
+            int tmpReduction = mFrontReduction;
+            mFrontReduction = mBackReduction;
+            mBackReduction = tmpReduction;
+
+            // The crop rect covers the whole of the front texture, whatever its size.
+            int height = getTextureHeight(mFrontReduction);
+            mCropRect[1] = height;
+            mCropRect[2] = getTextureWidth(mFrontReduction);
+            mCropRect[3] = -height;
+        }
+
+        /** Returns true if the front texture is up to date and nothing is being uploaded. */
+        private boolean isSettled() {
+            return mFrontValid && mDirtyRect.isEmpty() && !mUploading && !mSwapNeeded &&
+                   mUploadFuture != null && mUploadFuture.isDone();
+        }
+
+        /**
+         * Returns how many milliseconds from now the tile will be ready for compression, zero if
+         * it's ready now, or -1 if there's nothing to compress.
+         */
+        public synchronized long getTimeUntilCompressible(long now, long delay) {
+            // Only full-resolution textures are compressed.
+            if (mFrontCompressed || mCompressing || mEvicted || mFrontReduction != 1)
+                return -1;
+            long remaining = Math.max(mLastInvalidationTime + delay - now, 0);
+            return isSettled() ? remaining : Math.max(remaining, COMPRESSION_RETRY_DELAY);
+        }
+
+        /**
+         * Encodes the tile's contents to ETC1, then has its worker upload the result and swap it
+         * in. Runs on the compression thread.
+         */
+        public void compress() {
+            final int generation;
+            synchronized (this) {
+                generation = mGeneration;
+                mCompressing = true;
+            }
+
+            int imageFormat = mImageBuffer.getFormat();
+            int stride = mImageBuffer.getStride();
+            int bytesPerPixel = CairoUtils.bitsPerPixelForCairoFormat(imageFormat) / 8;
+            ByteBuffer source = mImageBuffer.getBuffer().slice();
+            source.position(mBounds.top * stride + mBounds.left * bytesPerPixel);
+
+            final ByteBuffer data = ByteBuffer.allocateDirect(getCompressedTextureBytes());
+            ETC1Encoder.encode(source, stride, mBounds.width(), mBounds.height(), imageFormat,
+                               data);
+            data.flip();
+
+            Runnable upload = new Runnable() {
+                @Override
+                public void run() {
+                    uploadCompressedTexture(data, generation);
+                }
+            };
+            // Waits here if the worker is backed up, which holds off further compression.
+            if (mWorker instanceof GLTaskExecutor)
+                ((GLTaskExecutor)mWorker).submit(upload, GLTaskExecutor.PRIORITY_LOW, this);
+            else
+                mWorker.execute(upload);
+        }
+
+        /**
+         * Uploads a compressed copy of the given generation of the tile's contents and swaps it
+         * in, giving back the uncompressed textures. Does nothing if the contents have changed.
+         */
+        private void uploadCompressedTexture(ByteBuffer data, int generation) {
+            synchronized (this) {
+                if (generation != mGeneration || !isSettled()) {
+                    mCompressing = false;
+                    return;
+                }
+            }
+
+            // Compression never makes anything visible sooner, so it goes behind other uploads.
+            if (mUploadScheduler != null)
+                mUploadScheduler.acquire(data.remaining(), false);
+
+            long startTime = System.nanoTime();
+            long bytes = data.remaining();
+            TexturePool pool = mTexturePool;
+            int textureID = pool.createCompressed(mBounds.width(), mBounds.height(),
+                                                  ETC1.ETC1_RGB8_OES, data);
+            long elapsed = System.nanoTime() - startTime;
+            if (mUploadScheduler != null)
+                mUploadScheduler.complete(elapsed);
+            mMetrics.noteUploadFinished(bytes, elapsed);
+
+            // The compositor must never see a partially-uploaded texture.
+            GLFence fence = GLFence.insert();
+            fence.waitForCompletion();
+            fence.dispose();
+
+            long freedBytes = 0;
+            synchronized (this) {
+                mCompressing = false;
+                if (generation != mGeneration || !isSettled()) {
+                    pool.discard(textureID);
+                    return;
+                }
+
+                // Swap the compressed texture in. Neither uncompressed texture is needed now.
+                if (mBackTextureID != 0)
+                    freedBytes += releaseTexture(mBackTextureID, mBackCompressed,
+                                                 mBackReduction, true);
+                mBackTextureID = textureID;
+                mBackCompressed = true;
+                mBackReduction = 1;
+                mBackTextureState.reset();
+                swapTextures();
+
+                freedBytes += releaseTexture(mBackTextureID, mBackCompressed,
+                                             mBackReduction, true);
+                mBackTextureID = 0;
+                mBackCompressed = false;
+                mBackStaleRect.setEmpty();
+            }
+
+            TextureMemoryBudget budget = TextureMemoryBudget.getInstance();
+            budget.free(mBudgetRegistration, freedBytes);
+            budget.allocate(mBudgetRegistration, getCompressedTextureBytes());
+        }
+
+        @Override
+        public String toString() {
+            return "[Tile @ " + mBounds.left + "," + mBounds.top + " for " + mBounds.width() +
+                   "x" + mBounds.height() + "]";
+        }
+    }
+
+    /**
+     * A set of changes to a layer, built privately by one thread and then published all at once
+     * with endTransaction(). Invalidations and the new origin and resolution become visible
+     * together, once the affected tiles have been uploaded.
+     */
+    public static class Transaction {
+        private ArrayList<Rect> mDirtyRects;
+        private boolean mInvalidateAll;
+        private Point mOrigin;
+        private float mResolution;
+        private boolean mEnded;
+
+        private Transaction() {
+            mDirtyRects = new ArrayList<Rect>();
+            mResolution = Float.NaN;
+        }
+
+        /** Invalidates the given rect, which is in layer coordinates. */
+        public void invalidate(Rect rect) {
+            checkNotEnded();
+            mDirtyRects.add(new Rect(rect));
+        }
+
+        /** Invalidates the entire layer. */
+        public void invalidate() {
+            checkNotEnded();
+            mInvalidateAll = true;
+        }
+
+        /** Sets the layer origin. */
+        public void setOrigin(Point origin) {
+            checkNotEnded();
+            mOrigin = new Point(origin);
+        }
+
+        /** Sets the layer resolution. */
+        public void setResolution(float resolution) {
+            checkNotEnded();
+            mResolution = resolution;
+        }
+
+        private void checkNotEnded() {
+            if (mEnded)
+                throw new IllegalStateException("Transaction already ended");
+        }
+
+        private TransactionRecord end() {
+            checkNotEnded();
+            mEnded = true;
+            Rect[] dirtyRects = mDirtyRects.toArray(new Rect[mDirtyRects.size()]);
+            mDirtyRects = null;
+            return new TransactionRecord(dirtyRects, mInvalidateAll, mOrigin, mResolution,
+                                         Collections.singletonList(new UploadFuture<Void>()));
+        }
+    }
+
+    /** An ended transaction. Immutable, so that any thread may read it without locking. */
+    private static final class TransactionRecord {
+        public final Rect[] dirtyRects;
+        public final boolean invalidateAll;
+        // Null if unchanged.
+        public final Point origin;
+        // NaN if unchanged.
+        public final float resolution;
+        // Completed once the changes have taken effect; one per merged transaction.
+        public final List<UploadFuture<Void>> completions;
+
+        public TransactionRecord(Rect[] aDirtyRects, boolean aInvalidateAll, Point aOrigin,
+                                 float aResolution, List<UploadFuture<Void>> aCompletions) {
+            dirtyRects = aDirtyRects;
+            invalidateAll = aInvalidateAll;
+            origin = aOrigin;
+            resolution = aResolution;
+            completions = aCompletions;
+        }
+
+        /** Returns a record with the effects of this one followed by the given later one. */
+        public TransactionRecord mergeWith(TransactionRecord later) {
+            Rect[] mergedRects = new Rect[dirtyRects.length + later.dirtyRects.length];
+            System.arraycopy(dirtyRects, 0, mergedRects, 0, dirtyRects.length);
+            System.arraycopy(later.dirtyRects, 0, mergedRects, dirtyRects.length,
+                             later.dirtyRects.length);
+            ArrayList<UploadFuture<Void>> mergedCompletions =
+                new ArrayList<UploadFuture<Void>>(completions);
+            mergedCompletions.addAll(later.completions);
+            return new TransactionRecord(mergedRects, invalidateAll || later.invalidateAll,
+                                         (later.origin != null) ? later.origin : origin,
+                                         Float.isNaN(later.resolution) ? resolution :
+                                                                         later.resolution,
+                                         Collections.unmodifiableList(mergedCompletions));
+        }
+    }
+
+    /**
+     * The parameters of one frame. Compositors may reuse a single instance from frame to frame to
+     * avoid allocation, so layers mustn't hold on to it.
+     */
+    public static class RenderContext {
+        public RectF viewport;
+        public FloatSize pageSize;
+        public float zoomFactor;
+
+        public RenderContext(RectF aViewport, FloatSize aPageSize, float aZoomFactor) {
+            set(aViewport, aPageSize, aZoomFactor);
+        }
+
+        public void set(RectF aViewport, FloatSize aPageSize, float aZoomFactor) {
+            viewport = aViewport;
+            pageSize = aPageSize;
+            zoomFactor = aZoomFactor;
+        }
+    }
+}
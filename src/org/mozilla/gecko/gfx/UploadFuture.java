@@ -0,0 +1,159 @@
+/* -*- Mode: c++; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Mozilla Android code.
+ *
+ * The Initial Developer of the Original Code is Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Patrick Walton <pcwalton@mozilla.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.gecko.gfx;
+
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A future that whoever does the work completes explicitly, standing in for CompletableFuture,
+ * which Android doesn't have. Callers may block on it as on any future, or attach callbacks that
+ * are posted to a completion queue once it's done. Only the first of complete(), fail() and
+ * cancel() takes effect.
+ */
+public class UploadFuture<V> implements Future<V> {
+    // Released once the future is done.
+    private final CountDownLatch mDone;
+    // The outcome. Guarded by this.
+    private V mResult;
+    private Throwable mFailure;
+    private boolean mCancelled;
+    // The callbacks to post once the future is done, and where to post each. Guarded by this;
+    // dropped once posted.
+    private ArrayList<Runnable> mCallbacks;
+    private ArrayList<CompletionQueue> mQueues;
+
+    public UploadFuture() {
+        mDone = new CountDownLatch(1);
+    }
+
+    public void complete(V result) {
+        finish(result, null, false);
+    }
+
+    public void fail(Throwable cause) {
+        finish(null, cause, false);
+    }
+
+    /** Cancels the future if it isn't done. There's nothing running to interrupt. */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return finish(null, null, true);
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+        return mDone.getCount() == 0;
+    }
+
+    @Override
+    public V get() throws InterruptedException, ExecutionException {
+        mDone.await();
+        return getResult();
+    }
+
+    @Override
+    public V get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        if (!mDone.await(timeout, unit))
+            throw new TimeoutException();
+        return getResult();
+    }
+
+    private synchronized V getResult() throws ExecutionException {
+        if (mCancelled)
+            throw new CancellationException();
+        if (mFailure != null)
+            throw new ExecutionException(mFailure);
+        return mResult;
+    }
+
+    /**
+     * Posts the given callback to the given queue once the future is done, or right away if it
+     * already is. The callback is also posted if the future fails or is cancelled.
+     */
+    public void whenDone(CompletionQueue queue, Runnable callback) {
+        synchronized (this) {
+            if (!isDone()) {
+                if (mCallbacks == null) {
+                    mCallbacks = new ArrayList<Runnable>();
+                    mQueues = new ArrayList<CompletionQueue>();
+                }
+                mCallbacks.add(callback);
+                mQueues.add(queue);
+                return;
+            }
+        }
+        queue.post(callback);
+    }
+
+    /** Records the outcome and posts the callbacks, unless the future is already done. */
+    private boolean finish(V result, Throwable failure, boolean cancelled) {
+        ArrayList<Runnable> callbacks;
+        ArrayList<CompletionQueue> queues;
+        synchronized (this) {
+            if (isDone())
+                return false;
+            mResult = result;
+            mFailure = failure;
+            mCancelled = cancelled;
+            mDone.countDown();
+
+            callbacks = mCallbacks;
+            queues = mQueues;
+            mCallbacks = null;
+            mQueues = null;
+        }
+
+        if (callbacks != null) {
+            for (int i = 0; i < callbacks.size(); i++)
+                queues.get(i).post(callbacks.get(i));
+        }
+        return true;
+    }
+}
@@ -0,0 +1,326 @@
+/* -*- Mode: c++; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Mozilla Android code.
+ *
+ * The Initial Developer of the Original Code is Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Patrick Walton <pcwalton@mozilla.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.gecko.gfx;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Measures the upload pipeline of a layer: how long uploads wait, run and take to be swapped in,
+ * how much they move, how many are thrown away, and how long the compositor waits to draw. Every
+ * layer has its own metrics, and everything recorded there is recorded in the global metrics too.
+ *
+ * Recording never locks or allocates, so it's cheap enough to leave on. Readings taken while
+ * uploads are running may be a few events out of step with each other.
+ */
+public class UploadMetrics {
+    private static final UploadMetrics sGlobal = new UploadMetrics(null);
+
+    // Where everything recorded here is recorded too, or null for the global metrics.
+    private final UploadMetrics mParent;
+
+    // From being queued until starting on a worker.
+    private final Histogram mQueueLatency;
+    // From starting to finish writing the texture.
+    private final Histogram mUploadTime;
+    // From finishing until swapped in, which includes waiting for the GPU.
+    private final Histogram mSwapLatency;
+    // From being queued until swapped in.
+    private final Histogram mTotalLatency;
+    // How long the compositor waited for swaps to let it draw.
+    private final Histogram mCompositorBlockedTime;
+
+    private final AtomicLong mBytesUploaded;
+    private final AtomicLong mUploadCount;
+    // Uploads dropped before they started, because their tile was invalidated again.
+    private final AtomicLong mCancelledCount;
+    // Uploads abandoned after they started, for the same reason.
+    private final AtomicLong mSupersededCount;
+    // Uploads queued but not yet started.
+    private final AtomicInteger mQueueDepth;
+    private final AtomicInteger mMaxQueueDepth;
+    // When the metrics were last reset, on the System.nanoTime() clock.
+    private volatile long mResetTime;
+
+    /** Creates metrics for one layer, which feed into the global metrics. */
+    public UploadMetrics() {
+        this(sGlobal);
+    }
+
+    private UploadMetrics(UploadMetrics parent) {
+        mParent = parent;
+        mQueueLatency = new Histogram();
+        mUploadTime = new Histogram();
+        mSwapLatency = new Histogram();
+        mTotalLatency = new Histogram();
+        mCompositorBlockedTime = new Histogram();
+        mBytesUploaded = new AtomicLong();
+        mUploadCount = new AtomicLong();
+        mCancelledCount = new AtomicLong();
+        mSupersededCount = new AtomicLong();
+        mQueueDepth = new AtomicInteger();
+        mMaxQueueDepth = new AtomicInteger();
+        mResetTime = System.nanoTime();
+    }
+
+    /** Returns the metrics of all layers together. */
+    public static UploadMetrics getGlobal() {
+        return sGlobal;
+    }
+
+    /** Records that an upload has been queued. */
+    public void noteUploadQueued() {
+        int depth = mQueueDepth.incrementAndGet();
+        while (true) {
+            int maxDepth = mMaxQueueDepth.get();
+            if (depth <= maxDepth || mMaxQueueDepth.compareAndSet(maxDepth, depth))
+                break;
+        }
+        if (mParent != null)
+            mParent.noteUploadQueued();
+    }
+
+    /** Records that an upload queued at the given time has started. */
+    public void noteUploadStarted(long queuedTime, long startTime) {
+        mQueueDepth.decrementAndGet();
+        mQueueLatency.record(startTime - queuedTime);
+        if (mParent != null)
+            mParent.noteUploadStarted(queuedTime, startTime);
+    }
+
+    /** Records that a queued upload was dropped before it started. */
+    public void noteUploadCancelled() {
+        mQueueDepth.decrementAndGet();
+        mCancelledCount.incrementAndGet();
+        if (mParent != null)
+            mParent.noteUploadCancelled();
+    }
+
+    /** Records that an upload was abandoned after it started. */
+    public void noteUploadSuperseded() {
+        mSupersededCount.incrementAndGet();
+        if (mParent != null)
+            mParent.noteUploadSuperseded();
+    }
+
+    /** Records an upload of the given number of bytes that took the given time. */
+    public void noteUploadFinished(long bytes, long nanos) {
+        mBytesUploaded.addAndGet(bytes);
+        mUploadCount.incrementAndGet();
+        mUploadTime.record(nanos);
+        if (mParent != null)
+            mParent.noteUploadFinished(bytes, nanos);
+    }
+
+    /**
+     * Records that an upload queued at the first of the given times, and finished at the second,
+     * was swapped in at the third.
+     */
+    public void noteSwap(long queuedTime, long finishTime, long swapTime) {
+        mSwapLatency.record(swapTime - finishTime);
+        mTotalLatency.record(swapTime - queuedTime);
+        if (mParent != null)
+            mParent.noteSwap(queuedTime, finishTime, swapTime);
+    }
+
+    /** Records that the compositor waited the given time before it could draw. */
+    public void noteCompositorBlocked(long nanos) {
+        mCompositorBlockedTime.record(nanos);
+        if (mParent != null)
+            mParent.noteCompositorBlocked(nanos);
+    }
+
+    public Histogram getQueueLatency() {
+        return mQueueLatency;
+    }
+
+    public Histogram getUploadTime() {
+        return mUploadTime;
+    }
+
+    public Histogram getSwapLatency() {
+        return mSwapLatency;
+    }
+
+    public Histogram getTotalLatency() {
+        return mTotalLatency;
+    }
+
+    public Histogram getCompositorBlockedTime() {
+        return mCompositorBlockedTime;
+    }
+
+    public long getBytesUploaded() {
+        return mBytesUploaded.get();
+    }
+
+    /** Returns the average upload rate since the metrics were created or last reset. */
+    public double getBytesPerSecond() {
+        long elapsed = System.nanoTime() - mResetTime;
+        return (elapsed <= 0) ? 0.0 : mBytesUploaded.get() * 1e9 / elapsed;
+    }
+
+    public long getUploadCount() {
+        return mUploadCount.get();
+    }
+
+    public long getCancelledCount() {
+        return mCancelledCount.get();
+    }
+
+    public long getSupersededCount() {
+        return mSupersededCount.get();
+    }
+
+    /** Returns the number of uploads that are queued but haven't started. */
+    public int getQueueDepth() {
+        return mQueueDepth.get();
+    }
+
+    public int getMaxQueueDepth() {
+        return mMaxQueueDepth.get();
+    }
+
+    /** Clears everything but the current queue depth. Doesn't affect the global metrics. */
+    public void reset() {
+        mQueueLatency.reset();
+        mUploadTime.reset();
+        mSwapLatency.reset();
+        mTotalLatency.reset();
+        mCompositorBlockedTime.reset();
+        mBytesUploaded.set(0);
+        mUploadCount.set(0);
+        mCancelledCount.set(0);
+        mSupersededCount.set(0);
+        mMaxQueueDepth.set(mQueueDepth.get());
+        mResetTime = System.nanoTime();
+    }
+
+    @Override
+    public String toString() {
+        return "uploads=" + getUploadCount() + " bytes/s=" + (long)getBytesPerSecond() +
+               " queued=" + getQueueDepth() + " (max " + getMaxQueueDepth() + ")" +
+               " cancelled=" + getCancelledCount() + " superseded=" + getSupersededCount() +
+               " queue=" + mQueueLatency + " upload=" + mUploadTime +
+               " swap=" + mSwapLatency + " total=" + mTotalLatency +
+               " blocked=" + mCompositorBlockedTime;
+    }
+
+    /**
+     * A histogram of durations in nanoseconds, with one bucket per power of two. Percentiles are
+     * therefore accurate to within a factor of two, which is plenty for telling a 1ms stall from
+     * a 10ms one.
+     */
+    public static class Histogram {
+        private static final int BUCKET_COUNT = 64;
+
+        // Bucket i counts the durations d with 2^(i-1) <= d < 2^i; bucket 0 counts zeros.
+        private final AtomicLongArray mBuckets;
+        private final AtomicLong mCount;
+        private final AtomicLong mTotal;
+        private final AtomicLong mMax;
+
+        public Histogram() {
+            mBuckets = new AtomicLongArray(BUCKET_COUNT);
+            mCount = new AtomicLong();
+            mTotal = new AtomicLong();
+            mMax = new AtomicLong();
+        }
+
+        public void record(long nanos) {
+            nanos = Math.max(nanos, 0L);
+            mBuckets.incrementAndGet(BUCKET_COUNT - Long.numberOfLeadingZeros(nanos));
+            mCount.incrementAndGet();
+            mTotal.addAndGet(nanos);
+            while (true) {
+                long max = mMax.get();
+                if (nanos <= max || mMax.compareAndSet(max, nanos))
+                    break;
+            }
+        }
+
+        public long getCount() {
+            return mCount.get();
+        }
+
+        public long getMax() {
+            return mMax.get();
+        }
+
+        public long getMean() {
+            long count = mCount.get();
+            return (count == 0) ? 0 : mTotal.get() / count;
+        }
+
+        /**
+         * Returns an upper bound on the given percentile, which is between 0 and 100, or zero if
+         * nothing has been recorded.
+         */
+        public long getPercentile(double percentile) {
+            long count = mCount.get();
+            if (count == 0)
+                return 0;
+
+            long rank = (long)Math.ceil(count * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += mBuckets.get(i);
+                if (seen >= rank && seen > 0)
+                    return (i == 0) ? 0 : Math.min((1L << i) - 1, mMax.get());
+            }
+            return mMax.get();
+        }
+
+        public void reset() {
+            for (int i = 0; i < BUCKET_COUNT; i++)
+                mBuckets.set(i, 0);
+            mCount.set(0);
+            mTotal.set(0);
+            mMax.set(0);
+        }
+
+        /** Summarizes the histogram in microseconds. */
+        @Override
+        public String toString() {
+            return "[n=" + getCount() + " p50=" + getPercentile(50) / 1000 +
+                   " p90=" + getPercentile(90) / 1000 + " p99=" + getPercentile(99) / 1000 +
+                   " max=" + getMax() / 1000 + "us]";
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/* -*- Mode: c++; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Mozilla Android code.
+ *
+ * The Initial Developer of the Original Code is Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Patrick Walton <pcwalton@mozilla.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.gecko.gfx;
+
+/**
+ * Spreads texture uploads across frames, so that a big invalidation doesn't compete with the
+ * compositor for memory bandwidth all at once. Each frame allows a number of bytes and an amount
+ * of upload time; once either is used up, uploads wait for the next frame. Uploads of visible
+ * tiles go before any others that are waiting.
+ *
+ * At least one upload goes ahead each frame, however big. If the frame clock stops ticking, as it
+ * does when nothing is being drawn, a new frame is assumed every MAX_FRAME_INTERVAL.
+ */
+public class UploadScheduler implements FrameClock.Listener {
+    private static final long MAX_FRAME_INTERVAL = 100L * 1000000L;
+
+    private final long mBytesPerFrame;
+    private final long mNanosPerFrame;
+
+    // When the current frame started, on the System.nanoTime() clock.
+    private long mFrameStart;
+    // What the current frame has used up.
+    private long mBytesUsed, mNanosUsed;
+    private int mUploadCount;
+    // The number of visible uploads waiting for a frame, which others have to wait behind.
+    private int mVisibleWaiters;
+
+    public UploadScheduler(long bytesPerFrame, long nanosPerFrame) {
+        mBytesPerFrame = bytesPerFrame;
+        mNanosPerFrame = nanosPerFrame;
+        mFrameStart = System.nanoTime();
+    }
+
+    @Override
+    public synchronized void onFrame(long frameTimeNanos) {
+        startFrame(frameTimeNanos);
+        notifyAll();
+    }
+
+    private void startFrame(long frameTimeNanos) {
+        mFrameStart = frameTimeNanos;
+        mBytesUsed = mNanosUsed = 0;
+        mUploadCount = 0;
+    }
+
+    /**
+     * Waits until an upload of the given size fits in the current frame, and charges it to the
+     * frame. Called on an upload thread, which should call complete() once it's done.
+     */
+    public synchronized void acquire(long bytes, boolean visible) {
+        if (visible)
+            mVisibleWaiters++;
+        try {
+            while (true) {
+                long now = System.nanoTime();
+                if (now - mFrameStart >= MAX_FRAME_INTERVAL)
+                    startFrame(now);
+                if ((visible || mVisibleWaiters == 0) && fits(bytes))
+                    break;
+
+                long timeout = mFrameStart + MAX_FRAME_INTERVAL - now;
+                try {
+                    wait(timeout / 1000000L, (int)(timeout % 1000000L));
+                } catch (InterruptedException e) {
+                    // Don't hold up the upload any longer.
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+
+            mBytesUsed += bytes;
+            mUploadCount++;
+        } finally {
+            if (visible && --mVisibleWaiters == 0)
+                notifyAll();
+        }
+    }
+
+    private boolean fits(long bytes) {
+        if (mUploadCount == 0)
+            return true;
+        return mBytesUsed + bytes <= mBytesPerFrame && mNanosUsed < mNanosPerFrame;
+    }
+
+    /** Charges the time that an acquired upload took to the current frame. */
+    public synchronized void complete(long elapsedNanos) {
+        mNanosUsed += elapsedNanos;
+    }
+
+    public long getBytesPerFrame() {
+        return mBytesPerFrame;
+    }
+
+    public long getNanosPerFrame() {
+        return mNanosPerFrame;
+    }
+}
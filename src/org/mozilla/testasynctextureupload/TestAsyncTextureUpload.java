@@ -2,11 +2,21 @@ package org.mozilla.testasynctextureupload;
 
 import org.mozilla.gecko.gfx.AndroidGLExtensions;
 import org.mozilla.gecko.gfx.AsyncGLExecutorFactory;
+import org.mozilla.gecko.gfx.AsyncGLExecutorPool;
 import org.mozilla.gecko.gfx.CairoImage;
+import org.mozilla.gecko.gfx.CompletionQueue;
 import org.mozilla.gecko.gfx.FloatSize;
+import org.mozilla.gecko.gfx.FrameClock;
+import org.mozilla.gecko.gfx.FrameTimeTracker;
+import org.mozilla.gecko.gfx.GLStateTracker;
 import org.mozilla.gecko.gfx.IntSize;
+import org.mozilla.gecko.gfx.MappedCairoImage;
 import org.mozilla.gecko.gfx.StripLayer;
-import org.mozilla.gecko.gfx.StripLayer.RenderContext;
+import org.mozilla.gecko.gfx.TexturePool;
+import org.mozilla.gecko.gfx.TiledLayer;
+import org.mozilla.gecko.gfx.TiledLayer.RenderContext;
+import org.mozilla.gecko.gfx.UploadMetrics;
+import org.mozilla.gecko.gfx.UploadScheduler;
 import android.app.Activity;
 import android.content.Context;
 import android.graphics.Bitmap;
@@ -29,6 +39,8 @@ import javax.microedition.khronos.egl.EGLContext;
 import javax.microedition.khronos.egl.EGLDisplay;
 import javax.microedition.khronos.egl.EGLSurface;
 import javax.microedition.khronos.opengles.GL10;
+import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ExecutionException;
@@ -63,12 +75,27 @@ public class TestAsyncTextureUpload extends Activity {
     private class TestRenderer4 implements GLSurfaceView.Renderer {
         private ByteBuffer[] mTextureImages;
         private StripLayer mLayer;
+        private AsyncGLExecutorPool mAsyncGLExecutorPool;
+        private Timer mFlipTimer;
         private IntSize mScreenSize;
-        private long mFrameStartTime;
-        private int mFrameCount;
+        private RectF mViewport;
+        private FloatSize mPageSize;
+        private RenderContext mRenderContext;
+        private long mLastReportTime;
+        private FrameClock mFrameClock;
+        private FrameTimeTracker mFrameTimes;
+        private UploadScheduler mUploadScheduler;
+        // Delivers the completion of each flip's transaction to this thread.
+        private CompletionQueue mCompletionQueue;
+        // How long the last flip took to reach the screen, in milliseconds.
+        private long mFlipLatency;
        
         public TestRenderer4() {
             loadTextureImages();
+            mCompletionQueue = new CompletionQueue();
+            mFrameClock = new FrameClock();
+            mFrameTimes = new FrameTimeTracker(120, FrameTimeTracker.DEFAULT_FRAME_INTERVAL);
+            mFrameClock.addListener(mFrameTimes);
         }
 
         private void loadTextureImages() {
@@ -79,10 +106,24 @@ public class TestAsyncTextureUpload extends Activity {
         }
 
         private void loadTextureImage(int imageIndex, int resourceID) {
-            Bitmap bitmap = BitmapFactory.decodeResource(getResources(), resourceID);
-            ByteBuffer buffer = ByteBuffer.allocateDirect(TEXTURE_WIDTH * TEXTURE_HEIGHT * 4);
-            bitmap.copyPixelsToBuffer(buffer.asIntBuffer());
-            mTextureImages[imageIndex] = buffer;
+            // Decode each image once, then map the raw pixels from the cache on later runs.
+            File file = new File(getCacheDir(), "tex" + imageIndex + ".raw");
+            IntSize size = new IntSize(TEXTURE_WIDTH, TEXTURE_HEIGHT);
+            try {
+                // A missing file has length 0, so this also catches a stale or damaged cache.
+                if (file.length() != MappedCairoImage.getFileLength(size,
+                                                                    CairoImage.FORMAT_ARGB32)) {
+                    Bitmap bitmap = BitmapFactory.decodeResource(getResources(), resourceID);
+                    ByteBuffer buffer = ByteBuffer.allocateDirect(TEXTURE_WIDTH * TEXTURE_HEIGHT *
+                                                                  4);
+                    bitmap.copyPixelsToBuffer(buffer.asIntBuffer());
+                    MappedCairoImage.write(file, size, CairoImage.FORMAT_ARGB32, buffer);
+                }
+                mTextureImages[imageIndex] = new MappedCairoImage(file).getBuffer();
+            } catch (IOException e) {
+                file.delete();
+                throw new RuntimeException(e);
+            }
         }
 
         private float mScale = 1.0f;
@@ -90,18 +131,25 @@ public class TestAsyncTextureUpload extends Activity {
 
         @Override
         public void onDrawFrame(GL10 gl) {
+            mFrameClock.tick();
+            mCompletionQueue.drain();
+
+            // Report the frame time percentiles over the last couple of seconds, once a second.
             long timestamp = SystemClock.uptimeMillis();
-            if (timestamp >= mFrameStartTime + 1000L) {
-                Log.e("TATU", "### " + mFrameCount + " FPS");
-                mFrameCount = 0;
-                mFrameStartTime = timestamp;
-            } else {
-                mFrameCount++;
+            if (timestamp >= mLastReportTime + 1000L) {
+                Log.i("TATU", "### " + mFrameTimes + ", last flip took " + mFlipLatency + "ms");
+
+                // The upload metrics cover the second since the last report.
+                UploadMetrics metrics = mLayer.getMetrics();
+                Log.i("TATU", "### Uploads: " + metrics);
+                metrics.reset();
+
+                GLStateTracker stateTracker = GLStateTracker.getInstance();
+                Log.i("TATU", "### GL state: " + stateTracker);
+                stateTracker.resetCounters();
+                mLastReportTime = timestamp;
             }
 
-            RectF viewport = new RectF(0.0f, 0.0f, mScreenSize.width, mScreenSize.height);
-            FloatSize pageSize = new FloatSize(mScreenSize.width, mScreenSize.height);
-
             if (mScaleIncreasing) {
                 mScale += 0.01f;
                 if (mScale > 1.0f) {
@@ -116,18 +164,14 @@ public class TestAsyncTextureUpload extends Activity {
                 }
             }
 
-            RenderContext renderContext = new RenderContext(viewport, pageSize, mScale);
+            // Reuse the render context, so that steady-state drawing doesn't allocate.
+            mRenderContext.set(mViewport, mPageSize, mScale);
 
             GLES11.glClear(GLES11.GL_COLOR_BUFFER_BIT);
 
             GLES11.glEnable(GLES11.GL_TEXTURE_2D);
 
-            mLayer.beginTransaction();
-            try {
-                mLayer.draw(renderContext);
-            } finally {
-                mLayer.endTransaction();
-            }
+            mLayer.draw(mRenderContext);
 
             long endTime = SystemClock.uptimeMillis();
         }
@@ -135,12 +179,32 @@ public class TestAsyncTextureUpload extends Activity {
         @Override
         public void onSurfaceChanged(GL10 gl, int width, int height) {
             mScreenSize = new IntSize(width, height);
+            mViewport = new RectF(0.0f, 0.0f, width, height);
+            mPageSize = new FloatSize(width, height);
+            mRenderContext = new RenderContext(mViewport, mPageSize, mScale);
             GLES11.glViewport(0, 0, width, height);
         }
 
         @Override
         public void onSurfaceCreated(GL10 gl, EGLConfig config) {
-            ExecutorService asyncGLExecutor = AsyncGLExecutorFactory.createAsyncGLExecutor(config);
+            // A new context means that the old one, and every texture in it, is gone. Drop the
+            // layer and the workers that refer to them before the pool and the state tracker
+            // forget the names.
+            if (mLayer != null) {
+                mFlipTimer.cancel();
+                mLayer.dispose();
+                mAsyncGLExecutorPool.shutdown();
+            }
+            TexturePool.onContextLost();
+            GLStateTracker.getInstance().invalidate();
+
+            // Upload at most two strips' worth, or 4 ms of uploading, per frame.
+            if (mUploadScheduler != null)
+                mFrameClock.removeListener(mUploadScheduler);
+            mUploadScheduler = new UploadScheduler(2 * 1024 * 1024, 4L * 1000000L);
+            mFrameClock.addListener(mUploadScheduler);
+            mAsyncGLExecutorPool =
+                AsyncGLExecutorFactory.createAsyncGLExecutorPool(config, 1, mUploadScheduler);
 
             final int[] bufferIndex = new int[1];
             final CairoImage imageBuffer = new CairoImage() {
@@ -157,21 +221,35 @@ public class TestAsyncTextureUpload extends Activity {
                 public int getFormat() { return CairoImage.FORMAT_ARGB32; }
             };
 
-            mLayer = new StripLayer(imageBuffer, asyncGLExecutor);
+            mLayer = new StripLayer(imageBuffer, mAsyncGLExecutorPool);
+            // The zoom sweeps down to 0.1, where full-resolution strips would waste bandwidth.
+            mLayer.setReductionThreshold(0.5f);
+            mLayer.setProgressive(true);
 
-            new Timer().schedule(new TimerTask() {
+            mFlipTimer = new Timer();
+            mFlipTimer.schedule(new TimerTask() {
                 @Override
                 public void run() {
-                    mLayer.beginTransaction();
-                    try {
-                        synchronized (imageBuffer) {
-                            int prevBuffer = bufferIndex[0];
-                            bufferIndex[0] = (prevBuffer == 0) ? 1 : 0;
-                        }
-                        mLayer.invalidate();
-                    } finally {
-                        mLayer.endTransaction();
+                    // Skip this flip if the uploads haven't kept up with the last ones.
+                    if (mLayer.isBackedUp())
+                        return;
+
+                    TiledLayer.Transaction transaction = mLayer.beginTransaction();
+                    synchronized (imageBuffer) {
+                        int prevBuffer = bufferIndex[0];
+                        bufferIndex[0] = (prevBuffer == 0) ? 1 : 0;
                     }
+                    transaction.invalidate();
+
+                    // The callback runs on the GL thread, at the start of the first frame to
+                    // show the flip.
+                    final long flipTime = SystemClock.uptimeMillis();
+                    mLayer.endTransaction(transaction).whenDone(mCompletionQueue, new Runnable() {
+                        @Override
+                        public void run() {
+                            mFlipLatency = SystemClock.uptimeMillis() - flipTime;
+                        }
+                    });
                 }
             }, 0L, 2000L);
         }
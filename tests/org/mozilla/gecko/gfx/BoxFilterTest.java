@@ -0,0 +1,163 @@
+/* -*- Mode: c++; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Mozilla Android code.
+ *
+ * The Initial Developer of the Original Code is Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Patrick Walton <pcwalton@mozilla.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.gecko.gfx;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import junit.framework.TestCase;
+
+/**
+ * Checks the box filter's averages against values worked out by hand. Averages round to the
+ * nearest value, with halves rounding up.
+ */
+public class BoxFilterTest extends TestCase {
+    public void testHalvesA8() {
+        ByteBuffer source = createImage(new int[] { 0, 10, 20, 30, 0,
+                                                    40, 50, 60, 70, 1 });
+        assertPixels(new int[] { 25, 45, 1 },
+                     downsample(source, 5, 5, 2, 2, CairoImage.FORMAT_A8));
+    }
+
+    public void testQuartersARGB32() {
+        // The first channel counts up to 15, the second is half 0 and half 255, and the others
+        // are constant.
+        int[] bytes = new int[4 * 4 * 4];
+        for (int i = 0; i < 16; i++) {
+            bytes[i * 4] = i;
+            bytes[i * 4 + 1] = (i < 8) ? 0 : 255;
+            bytes[i * 4 + 2] = 7;
+            bytes[i * 4 + 3] = 255;
+        }
+        assertPixels(new int[] { 8, 128, 7, 255 },
+                     downsample(createImage(bytes), 16, 4, 4, 4, CairoImage.FORMAT_ARGB32));
+    }
+
+    public void testHalvesRGB565ByChannel() {
+        // Red, green and blue average to 31/4, 126/4 and 10/4, which round to 8, 32 and 3.
+        ByteBuffer source = createRGB565Image(new int[] { rgb565(31, 63, 1), rgb565(0, 63, 2),
+                                                          rgb565(0, 0, 3), rgb565(0, 0, 4) });
+        ByteBuffer dest = downsample(source, 4, 2, 2, 2, CairoImage.FORMAT_RGB16_565);
+        assertEquals(rgb565(8, 32, 3), dest.order(ByteOrder.nativeOrder()).getShort(0) & 0xffff);
+    }
+
+    public void testOddEdgesAverageOnlyWhatExists() {
+        // 5x3 halves to 3x2; the last column and row come from partial blocks.
+        ByteBuffer source = createImage(new int[] { 10, 20, 30, 40, 50,
+                                                    60, 70, 80, 90, 100,
+                                                    110, 120, 130, 140, 150 });
+        assertPixels(new int[] { 40, 60, 75,
+                                 115, 135, 150 },
+                     downsample(source, 5, 5, 3, 2, CairoImage.FORMAT_A8));
+    }
+
+    public void testStrideAndPositions() {
+        // A 2x2 block at the second pixel of a padded 4-pixel-wide A8 image.
+        ByteBuffer source = createImage(new int[] { 0, 10, 20, 0, 0, 0,
+                                                    0, 30, 41, 0, 0, 0 });
+        source.position(1);
+        ByteBuffer dest = ByteBuffer.allocateDirect(4);
+        dest.position(2);
+        BoxFilter.downsample(source, 6, 2, 2, 2, CairoImage.FORMAT_A8, dest);
+        assertEquals(1, source.position());
+        assertEquals(3, dest.position());
+        assertEquals(25, dest.get(2) & 0xff);
+    }
+
+    public void testTallImagesAreFilteredInBands() {
+        // Tall enough to be split across threads. Each row's pixels are its row number, so each
+        // output row averages two rows to 2y + 0.5, which rounds up.
+        int width = 64, height = 256;
+        int[] bytes = new int[width * height];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = i / width;
+        ByteBuffer dest = downsample(createImage(bytes), width, width, height, 2,
+                                     CairoImage.FORMAT_A8);
+        int destWidth = width / 2;
+        for (int y = 0; y < height / 2; y++) {
+            for (int x = 0; x < destWidth; x++)
+                assertEquals(x + "," + y, 2 * y + 1, dest.get(y * destWidth + x) & 0xff);
+        }
+    }
+
+    public void testReducedLengthRoundsUp() {
+        assertEquals(1, BoxFilter.getReducedLength(1, 4));
+        assertEquals(2, BoxFilter.getReducedLength(5, 4));
+        assertEquals(256, BoxFilter.getReducedLength(512, 2));
+    }
+
+    /**
+     * Downsamples the whole of the given image, and checks that the output fills the returned
+     * buffer exactly.
+     */
+    private static ByteBuffer downsample(ByteBuffer source, int stride, int width, int height,
+                                         int factor, int cairoFormat) {
+        int bytesPerPixel = CairoUtils.bitsPerPixelForCairoFormat(cairoFormat) / 8;
+        ByteBuffer dest = ByteBuffer.allocateDirect(BoxFilter.getReducedLength(width, factor) *
+                                                    BoxFilter.getReducedLength(height, factor) *
+                                                    bytesPerPixel);
+        BoxFilter.downsample(source, stride, width, height, factor, cairoFormat, dest);
+        assertEquals(dest.capacity(), dest.position());
+        return dest;
+    }
+
+    private static ByteBuffer createImage(int[] bytes) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        for (int value : bytes)
+            buffer.put((byte)value);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static ByteBuffer createRGB565Image(int[] pixels) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(pixels.length * 2);
+        buffer.order(ByteOrder.nativeOrder());
+        for (int pixel : pixels)
+            buffer.putShort((short)pixel);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static int rgb565(int r, int g, int b) {
+        return (r << 11) | (g << 5) | b;
+    }
+
+    private static void assertPixels(int[] expected, ByteBuffer dest) {
+        for (int i = 0; i < expected.length; i++)
+            assertEquals("byte " + i, expected[i], dest.get(i) & 0xff);
+    }
+}
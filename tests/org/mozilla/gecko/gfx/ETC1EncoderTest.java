@@ -0,0 +1,131 @@
+/* -*- Mode: c++; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Mozilla Android code.
+ *
+ * The Initial Developer of the Original Code is Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Patrick Walton <pcwalton@mozilla.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.mozilla.gecko.gfx;
+
+import java.nio.ByteBuffer;
+import junit.framework.TestCase;
+
+/**
+ * Checks the ETC1 encoder against blocks worked out by hand from the format: a big-endian header
+ * of base colors, modifier tables, and the differential and flip bits, followed by the most and
+ * then the least significant bits of each pixel's modifier index, column by column.
+ */
+public class ETC1EncoderTest extends TestCase {
+    private static final int BLACK = 0x000000, WHITE = 0xffffff;
+
+    public void testSolidBlock() {
+        // Differential mode with no difference; every pixel takes the -2 of modifier table 0.
+        assertEncoding("80 40 20 02 ff ff 00 00", encode(4, 4, fill(16, 0x804020)));
+    }
+
+    public void testDifferentialBlock() {
+        // Left and right halves close enough for differential mode, without flipping. The base
+        // colors quantize to 12 and 15 out of 31, and every pixel takes the +2 of table 0.
+        int[] pixels = new int[16];
+        for (int i = 0; i < 16; i++)
+            pixels[i] = (i % 4 < 2) ? 0x646464 : 0x7c7c7c;
+        assertEncoding("63 63 63 02 00 00 00 00", encode(4, 4, pixels));
+    }
+
+    public void testFlippedIndividualBlock() {
+        // Top and bottom halves too far apart for differential mode, so the subblocks are
+        // flipped and get 4-bit base colors of their own, 34 and 221. The dark pixels take -2
+        // and the light ones +2, both from table 0. (Black and white would clamp to an exact
+        // encoding without flipping.)
+        int[] pixels = new int[16];
+        for (int i = 0; i < 16; i++)
+            pixels[i] = (i < 8) ? 0x202020 : 0xe0e0e0;
+        assertEncoding("2d 2d 2d 01 33 33 00 00", encode(4, 4, pixels));
+    }
+
+    public void testPartialBlocksRepeatTheEdge() {
+        // Two blocks across, in which the last two columns and rows repeat the edge; the second
+        // block comes out solid white only if nothing past the edge is read.
+        int[] pixels = new int[6 * 2];
+        for (int i = 0; i < pixels.length; i++)
+            pixels[i] = (i % 6 < 4) ? BLACK : WHITE;
+        assertEquals(16, ETC1Encoder.getEncodedSize(6, 2));
+        assertEncoding("00 00 00 02 ff ff 00 00 f8 f8 f8 02 00 00 00 00",
+                       encode(6, 2, pixels));
+    }
+
+    public void testEncodedSizeRoundsUpToBlocks() {
+        assertEquals(8, ETC1Encoder.getEncodedSize(1, 1));
+        assertEquals(32, ETC1Encoder.getEncodedSize(5, 6));
+        assertEquals(8 * 64 * 64, ETC1Encoder.getEncodedSize(256, 256));
+    }
+
+    private static int[] fill(int count, int rgb) {
+        int[] pixels = new int[count];
+        for (int i = 0; i < count; i++)
+            pixels[i] = rgb;
+        return pixels;
+    }
+
+    /**
+     * Encodes an ARGB32 image of the given size, whose pixels are given as 0xRRGGBB row by row,
+     * with no padding between rows.
+     */
+    private static ByteBuffer encode(int width, int height, int[] pixels) {
+        ByteBuffer image = ByteBuffer.allocateDirect(width * height * 4);
+        for (int rgb : pixels) {
+            image.put((byte)(rgb >>> 16));
+            image.put((byte)(rgb >>> 8));
+            image.put((byte)rgb);
+            image.put((byte)0xff);
+        }
+        image.flip();
+
+        ByteBuffer encoded = ByteBuffer.allocate(ETC1Encoder.getEncodedSize(width, height));
+        ETC1Encoder.encode(image, width * 4, width, height, CairoImage.FORMAT_ARGB32, encoded);
+        assertEquals(encoded.capacity(), encoded.position());
+        encoded.flip();
+        return encoded;
+    }
+
+    private static void assertEncoding(String expected, ByteBuffer encoded) {
+        StringBuilder actual = new StringBuilder();
+        while (encoded.hasRemaining()) {
+            if (actual.length() > 0)
+                actual.append(' ');
+            actual.append(String.format("%02x", encoded.get() & 0xff));
+        }
+        assertEquals(expected, actual.toString());
+    }
+}
@@ -0,0 +1,114 @@
+/* -*- Mode: c++; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Mozilla Android code.
+ *
+ * The Initial Developer of the Original Code is Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Patrick Walton <pcwalton@mozilla.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.gecko.gfx;
+
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+
+/** Checks FrameTimeTracker's percentiles and dropped-frame count over known series of frames. */
+public class FrameTimeTrackerTest extends TestCase {
+    public void testPercentiles() {
+        // 1 to 100 ms, out of order, so that each percentile is that many milliseconds.
+        FrameTimeTracker tracker = createTracker(100);
+        for (int i = 0; i < 100; i++)
+            tracker.recordFrame(millis(i * 37 % 100 + 1));
+
+        assertEquals(100, tracker.getFrameCount());
+        assertEquals(millis(50), tracker.getPercentile(50));
+        assertEquals(millis(90), tracker.getPercentile(90));
+        assertEquals(millis(99), tracker.getPercentile(99));
+        assertEquals(millis(100), tracker.getMax());
+        assertEquals(millis(1), tracker.getPercentile(0));
+        assertEquals(millis(100), tracker.getPercentile(100));
+    }
+
+    public void testDroppedFramesRoundToRefreshes() {
+        FrameTimeTracker tracker = createTracker(10);
+        // On time, jittery, late by less than half a refresh, one refresh late, and two late.
+        tracker.recordFrame(millis(16));
+        tracker.recordFrame(millis(17));
+        tracker.recordFrame(millis(24));
+        tracker.recordFrame(millis(33));
+        tracker.recordFrame(millis(50));
+        assertEquals(3, tracker.getDroppedFrames());
+        assertEquals(5, tracker.getFrameCount());
+    }
+
+    public void testOnlyRecentFramesAreKept() {
+        FrameTimeTracker tracker = createTracker(4);
+        tracker.recordFrame(millis(100));
+        tracker.recordFrame(millis(90));
+        for (int i = 1; i <= 4; i++)
+            tracker.recordFrame(millis(i));
+
+        // The percentiles cover the last four frames, but the counts cover all of them; 100 ms
+        // spans six refreshes and 90 ms five.
+        assertEquals(millis(4), tracker.getMax());
+        assertEquals(millis(2), tracker.getPercentile(50));
+        assertEquals(6, tracker.getFrameCount());
+        assertEquals(9, tracker.getDroppedFrames());
+    }
+
+    public void testFrameClockTimesFramesBetweenTicks() {
+        FrameTimeTracker tracker = createTracker(10);
+        // The first frame has no start to measure from.
+        tracker.onFrame(millis(1000));
+        tracker.onFrame(millis(1016));
+        tracker.onFrame(millis(1049));
+        assertEquals(2, tracker.getFrameCount());
+        assertEquals(millis(33), tracker.getMax());
+        assertEquals(1, tracker.getDroppedFrames());
+
+        // Nor does the first frame after a reset.
+        tracker.reset();
+        tracker.onFrame(millis(2000));
+        assertEquals(0, tracker.getFrameCount());
+        assertEquals(0, tracker.getPercentile(50));
+        assertEquals(0, tracker.getMax());
+        tracker.onFrame(millis(2016));
+        assertEquals(millis(16), tracker.getMax());
+    }
+
+    private static FrameTimeTracker createTracker(int capacity) {
+        return new FrameTimeTracker(capacity, FrameTimeTracker.DEFAULT_FRAME_INTERVAL);
+    }
+
+    private static long millis(long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+}
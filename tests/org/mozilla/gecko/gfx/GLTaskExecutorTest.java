@@ -0,0 +1,228 @@
+/* -*- Mode: c++; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Mozilla Android code.
+ *
+ * The Initial Developer of the Original Code is Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Patrick Walton <pcwalton@mozilla.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.mozilla.gecko.gfx;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+
+/** Checks the ordering, coalescing, and back-pressure of GLTaskExecutor. */
+public class GLTaskExecutorTest extends TestCase {
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private GLTaskExecutor mExecutor;
+    // The names of the tasks that have run, in order.
+    private List<String> mLog;
+    // Holds up the executor's thread until it's counted down.
+    private CountDownLatch mGate;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mLog = new ArrayList<String>();
+        mGate = new CountDownLatch(1);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mGate.countDown();
+        mExecutor.shutdown();
+        assertTrue(mExecutor.awaitTermination(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        super.tearDown();
+    }
+
+    public void testThreadSetupRunsBeforeAnyTask() throws Exception {
+        mExecutor = new GLTaskExecutor(4, new Runnable() {
+            @Override
+            public void run() {
+                awaitGate();
+                log("setup");
+            }
+        });
+        Future<?> future = mExecutor.submit(logTask("upload"), GLTaskExecutor.PRIORITY_HIGH);
+        mGate.countDown();
+        future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertLog("setup", "upload");
+    }
+
+    public void testHigherPriorityRunsFirst() throws Exception {
+        mExecutor = new GLTaskExecutor(4);
+        closeGate();
+        mExecutor.submit(logTask("low"), GLTaskExecutor.PRIORITY_LOW);
+        mExecutor.submit(logTask("normal 1"), GLTaskExecutor.PRIORITY_NORMAL);
+        mExecutor.submit(logTask("high"), GLTaskExecutor.PRIORITY_HIGH);
+        mExecutor.execute(logTask("normal 2"));
+        openGateAndDrain();
+        assertLog("high", "normal 1", "normal 2", "low");
+    }
+
+    public void testReplacementTakesOverQueuedPlace() throws Exception {
+        mExecutor = new GLTaskExecutor(4);
+        closeGate();
+        Future<?> replaced = mExecutor.submit(logTask("old"), GLTaskExecutor.PRIORITY_LOW, "a");
+        mExecutor.submit(logTask("other"), GLTaskExecutor.PRIORITY_LOW);
+        mExecutor.submit(logTask("new"), GLTaskExecutor.PRIORITY_LOW, "a");
+        assertTrue(replaced.isCancelled());
+        assertEquals(1, mExecutor.getReplacedTaskCount());
+        openGateAndDrain();
+        assertLog("new", "other");
+    }
+
+    public void testReplacementKeepsHigherPriority() throws Exception {
+        mExecutor = new GLTaskExecutor(4);
+        closeGate();
+        mExecutor.submit(logTask("old"), GLTaskExecutor.PRIORITY_HIGH, "a");
+        mExecutor.submit(logTask("other"), GLTaskExecutor.PRIORITY_NORMAL);
+        mExecutor.submit(logTask("new"), GLTaskExecutor.PRIORITY_LOW, "a");
+        openGateAndDrain();
+        assertLog("new", "other");
+    }
+
+    public void testCancelledTaskDoesNotRun() throws Exception {
+        mExecutor = new GLTaskExecutor(4);
+        closeGate();
+        Future<?> cancelled = mExecutor.submit(logTask("cancelled"), GLTaskExecutor.PRIORITY_HIGH,
+                                               "a");
+        mExecutor.submit(logTask("kept"), GLTaskExecutor.PRIORITY_HIGH, "b");
+        assertTrue(cancelled.cancel(false));
+        openGateAndDrain();
+        assertLog("kept");
+    }
+
+    public void testOtherThreadsWaitWhileFull() throws Exception {
+        mExecutor = new GLTaskExecutor(2);
+        closeGate();
+        mExecutor.submit(logTask("a"), GLTaskExecutor.PRIORITY_NORMAL, "a");
+        mExecutor.submit(logTask("b"), GLTaskExecutor.PRIORITY_NORMAL, "b");
+        assertTrue(mExecutor.isFull());
+
+        // Replacing a queued task and submitting one without a key never wait.
+        mExecutor.submit(logTask("b2"), GLTaskExecutor.PRIORITY_NORMAL, "b");
+        mExecutor.execute(logTask("unkeyed"));
+
+        final CountDownLatch submitted = new CountDownLatch(1);
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                mExecutor.submit(logTask("c"), GLTaskExecutor.PRIORITY_NORMAL, "c");
+                submitted.countDown();
+            }
+        };
+        producer.start();
+        assertFalse(submitted.await(100, TimeUnit.MILLISECONDS));
+
+        mGate.countDown();
+        assertTrue(submitted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        producer.join();
+        drain();
+        assertLog("a", "b2", "unkeyed", "c");
+        assertFalse(mExecutor.isFull());
+    }
+
+    public void testOwnThreadDoesNotWaitWhenFull() throws Exception {
+        mExecutor = new GLTaskExecutor(1);
+        Future<?> producer = mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                mExecutor.submit(logTask("a"), GLTaskExecutor.PRIORITY_NORMAL, "a");
+                mExecutor.submit(logTask("b"), GLTaskExecutor.PRIORITY_NORMAL, "b");
+                assertTrue(mExecutor.isFull());
+            }
+        });
+        producer.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        drain();
+        assertLog("a", "b");
+    }
+
+    /** Holds up the executor's thread until the gate is opened. */
+    private void closeGate() {
+        mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                awaitGate();
+            }
+        }, GLTaskExecutor.PRIORITY_HIGH);
+    }
+
+    private void openGateAndDrain() throws Exception {
+        mGate.countDown();
+        drain();
+    }
+
+    /** Waits until everything queued so far, at any priority, has run. */
+    private void drain() throws Exception {
+        mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {}
+        }, GLTaskExecutor.PRIORITY_LOW).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private void awaitGate() {
+        try {
+            mGate.await();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private Runnable logTask(final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                log(name);
+            }
+        };
+    }
+
+    private void log(String name) {
+        synchronized (mLog) {
+            mLog.add(name);
+        }
+    }
+
+    private void assertLog(String... names) {
+        synchronized (mLog) {
+            assertEquals(Arrays.asList(names), mLog);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/* -*- Mode: c++; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Mozilla Android code.
+ *
+ * The Initial Developer of the Original Code is Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Patrick Walton <pcwalton@mozilla.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.gecko.gfx;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import junit.framework.TestCase;
+
+/**
+ * Checks the pixel converters against pixels worked out by hand. RGB565 keeps the top bits of
+ * each channel, so values round down.
+ */
+public class PixelConverterTest extends TestCase {
+    public void testRGBAToRGB565() {
+        // Pixels are given as the bytes in memory, R G B A.
+        assertEquals(0xf800, convertToRGB565(PixelConverter.RGBA_TO_RGB565, 0xff, 0x00, 0x00));
+        assertEquals(0x07e0, convertToRGB565(PixelConverter.RGBA_TO_RGB565, 0x00, 0xff, 0x00));
+        assertEquals(0x001f, convertToRGB565(PixelConverter.RGBA_TO_RGB565, 0x00, 0x00, 0xff));
+        assertEquals(0x8401, convertToRGB565(PixelConverter.RGBA_TO_RGB565, 0x84, 0x82, 0x08));
+    }
+
+    public void testBGRAToRGB565() {
+        // Pixels are given as the bytes in memory, B G R A.
+        assertEquals(0xf800, convertToRGB565(PixelConverter.BGRA_TO_RGB565, 0x00, 0x00, 0xff));
+        assertEquals(0x07e0, convertToRGB565(PixelConverter.BGRA_TO_RGB565, 0x00, 0xff, 0x00));
+        assertEquals(0x001f, convertToRGB565(PixelConverter.BGRA_TO_RGB565, 0xff, 0x00, 0x00));
+        assertEquals(0x8401, convertToRGB565(PixelConverter.BGRA_TO_RGB565, 0x08, 0x82, 0x84));
+    }
+
+    public void testRGB565RoundsDown() {
+        PixelConverter converter = PixelConverter.RGBA_TO_RGB565;
+        // Just below the first step of each channel.
+        assertEquals(0x0000, convertToRGB565(converter, 0x07, 0x03, 0x07));
+        // Just below full intensity, and full intensity once the dropped bits are gone.
+        assertEquals(0xf7de, convertToRGB565(converter, 0xf7, 0xfb, 0xf7));
+        assertEquals(0xffff, convertToRGB565(converter, 0xf8, 0xfc, 0xf8));
+    }
+
+    public void testBGRAToRGBASwapsRedAndBlue() {
+        ByteBuffer source = createPixels(new int[] { 0x01, 0x02, 0x03, 0x04,
+                                                     0xff, 0x80, 0x00, 0x40 });
+        ByteBuffer dest = ByteBuffer.allocateDirect(8);
+        PixelConverter.BGRA_TO_RGBA.convert(source, 8, 2, 1, dest);
+        assertEquals(8, dest.position());
+        assertBytes(new int[] { 0x03, 0x02, 0x01, 0x04, 0x00, 0x80, 0xff, 0x40 }, dest, 0);
+    }
+
+    public void testConvertHonorsStrideAndPositions() {
+        // A 2x2 block at the second pixel of a 4-pixel-wide image, into the middle of dest.
+        int[] bytes = new int[4 * 2 * 4];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = i;
+        ByteBuffer source = createPixels(bytes);
+        source.position(4);
+        ByteBuffer dest = ByteBuffer.allocateDirect(24);
+        dest.position(4);
+
+        PixelConverter.BGRA_TO_RGBA.convert(source, 16, 2, 2, dest);
+        assertEquals(4, source.position());
+        assertEquals(20, dest.position());
+        assertBytes(new int[] { 6, 5, 4, 7, 10, 9, 8, 11, 22, 21, 20, 23, 26, 25, 24, 27 },
+                    dest, 4);
+    }
+
+    public void testConvertRejectsMisalignedRows() {
+        try {
+            PixelConverter.BGRA_TO_RGBA.convert(ByteBuffer.allocateDirect(64), 10, 2, 2,
+                                                ByteBuffer.allocateDirect(16));
+            fail("Expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    /** Converts one pixel with the given bytes, and an opaque alpha, to RGB565. */
+    private static int convertToRGB565(PixelConverter converter, int byte0, int byte1,
+                                       int byte2) {
+        ByteBuffer dest = ByteBuffer.allocateDirect(2);
+        converter.convert(createPixels(new int[] { byte0, byte1, byte2, 0xff }), 4, 1, 1, dest);
+        assertEquals(2, dest.position());
+        // The shorts are written in native order, as GL reads them.
+        return dest.order(ByteOrder.nativeOrder()).getShort(0) & 0xffff;
+    }
+
+    private static ByteBuffer createPixels(int[] bytes) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        for (int value : bytes)
+            buffer.put((byte)value);
+        buffer.flip();
+        return buffer;
+    }
+
+    /** Checks the buffer's bytes from the given index on. */
+    private static void assertBytes(int[] expected, ByteBuffer buffer, int index) {
+        for (int i = 0; i < expected.length; i++)
+            assertEquals("byte " + i, expected[i], buffer.get(index + i) & 0xff);
+    }
+}
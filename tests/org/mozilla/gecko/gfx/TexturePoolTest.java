@@ -0,0 +1,84 @@
+/* -*- Mode: c++; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Mozilla Android code.
+ *
+ * The Initial Developer of the Original Code is Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Patrick Walton <pcwalton@mozilla.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.mozilla.gecko.gfx;
+
+import junit.framework.TestCase;
+
+/** Checks that the texture pool never lets names outlive their GL context. */
+public class TexturePoolTest extends TestCase {
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TexturePool.onContextLost();
+    }
+
+    public void testReleasedTextureIsReused() {
+        new RecordingGLBackend(0).install();
+        TexturePool pool = TexturePool.getInstance();
+        int textureID = pool.acquire(64, 64, CairoImage.FORMAT_ARGB32);
+        pool.release(textureID, 64, 64, CairoImage.FORMAT_ARGB32);
+        assertEquals(textureID, pool.acquire(64, 64, CairoImage.FORMAT_ARGB32));
+    }
+
+    public void testOldContextTexturesAreForgotten() {
+        new RecordingGLBackend(0).install();
+        TexturePool oldPool = TexturePool.getInstance();
+        int idleTexture = oldPool.acquire(64, 64, CairoImage.FORMAT_ARGB32);
+        int liveTexture = oldPool.acquire(64, 64, CairoImage.FORMAT_ARGB32);
+        oldPool.release(idleTexture, 64, 64, CairoImage.FORMAT_ARGB32);
+
+        // The new context hands out the same names again.
+        TexturePool.onContextLost();
+        RecordingGLBackend backend = new RecordingGLBackend(0);
+        backend.install();
+        TexturePool pool = TexturePool.getInstance();
+        assertTrue(pool != oldPool);
+        int newTexture = pool.acquire(64, 64, CairoImage.FORMAT_ARGB32);
+        assertEquals(idleTexture, newTexture);
+
+        // Layers of the old context give their textures back late, or from finalizers.
+        oldPool.release(liveTexture, 64, 64, CairoImage.FORMAT_ARGB32);
+        oldPool.discard(newTexture);
+        // Deleting doomed textures would delete the new context's texture.
+        pool.acquire(64, 64, CairoImage.FORMAT_ARGB32);
+
+        assertEquals(2, backend.getTextureCount());
+        assertEquals(0, backend.getErrors());
+    }
+}
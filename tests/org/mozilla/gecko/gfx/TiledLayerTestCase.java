@@ -0,0 +1,138 @@
+/* -*- Mode: c++; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Mozilla Android code.
+ *
+ * The Initial Developer of the Original Code is Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Patrick Walton <pcwalton@mozilla.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.mozilla.gecko.gfx;
+
+import android.graphics.Rect;
+import android.graphics.RectF;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import junit.framework.TestCase;
+
+/**
+ * Sets up a headless recording backend and an upload worker for tests of tiled layers, and
+ * tears down whatever the test left behind.
+ *
+ * These tests need no device; run them with "ant test". They run against Robolectric's
+ * android-all rather than the SDK's android.jar, since the latter's android.graphics classes
+ * are stubs that throw.
+ */
+public abstract class TiledLayerTestCase extends TestCase {
+    // Slow enough that uploads are still in flight on the GPU when their calls return.
+    protected static final long GPU_BYTES_PER_SECOND = 200L * 1000 * 1000;
+
+    private static final long TRANSACTION_TIMEOUT_SECONDS = 10;
+
+    protected RecordingGLBackend mBackend;
+    protected GLTaskExecutor mExecutor;
+    private TiledLayer mLayer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mBackend = new RecordingGLBackend(GPU_BYTES_PER_SECOND);
+        mBackend.install();
+        // Each backend is a new context, so names from the last test's mean nothing to it.
+        TexturePool.onContextLost();
+        GLStateTracker.getInstance().invalidate();
+        // The same kind of executor that AsyncGLExecutorFactory creates.
+        mExecutor = new GLTaskExecutor(64);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mLayer != null)
+            mLayer.dispose();
+        mExecutor.shutdown();
+        mExecutor.awaitTermination(TRANSACTION_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertEquals("GL errors", 0, mBackend.getErrors());
+        super.tearDown();
+    }
+
+    protected StripLayer createStripLayer(int width, int height) {
+        return track(new StripLayer(createImage(width, height), mExecutor));
+    }
+
+    protected TileLayer createTileLayer(int width, int height, int tileSize) {
+        return track(new TileLayer(createImage(width, height), mExecutor, tileSize));
+    }
+
+    private <T extends TiledLayer> T track(T layer) {
+        assertNull("one layer per test", mLayer);
+        mLayer = layer;
+        return layer;
+    }
+
+    /** Returns a render context whose viewport shows the whole of a layer of the given size. */
+    protected static TiledLayer.RenderContext createRenderContext(int width, int height) {
+        return new TiledLayer.RenderContext(new RectF(0, 0, width, height),
+                                            new FloatSize(width, height), 1.0f);
+    }
+
+    /** Invalidates the given rect, or everything if it's null, and waits for the swap. */
+    protected void invalidate(TiledLayer layer, Rect rect) throws Exception {
+        TiledLayer.Transaction transaction = layer.beginTransaction();
+        if (rect == null)
+            transaction.invalidate();
+        else
+            transaction.invalidate(rect);
+        waitFor(layer.endTransaction(transaction));
+    }
+
+    protected static void waitFor(UploadFuture<Void> future) throws Exception {
+        try {
+            future.get(TRANSACTION_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            fail("transaction wasn't swapped in");
+        }
+    }
+
+    private static CairoImage createImage(int width, int height) {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(width * height * 4);
+        final IntSize size = new IntSize(width, height);
+        return new CairoImage() {
+            @Override
+            public ByteBuffer getBuffer() { return buffer; }
+            @Override
+            public IntSize getSize() { return size; }
+            @Override
+            public int getFormat() { return CairoImage.FORMAT_ARGB32; }
+        };
+    }
+}
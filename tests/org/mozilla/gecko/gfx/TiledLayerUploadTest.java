@@ -0,0 +1,201 @@
+/* -*- Mode: c++; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Mozilla Android code.
+ *
+ * The Initial Developer of the Original Code is Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Patrick Walton <pcwalton@mozilla.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.mozilla.gecko.gfx;
+
+import android.graphics.Rect;
+import java.util.List;
+
+/** Checks which texels each transaction uploads, through the recording backend. */
+public class TiledLayerUploadTest extends TiledLayerTestCase {
+    public void testFullInvalidateUploadsEachStripOnce() throws Exception {
+        // Strips are 1024 rows high at this width.
+        StripLayer layer = createStripLayer(256, 2048);
+        invalidate(layer, null);
+
+        List<int[]> uploads = mBackend.getUploads();
+        assertEquals(2, uploads.size());
+        assertUpload(uploads.get(0), new Rect(0, 0, 256, 1024));
+        assertUpload(uploads.get(1), new Rect(0, 0, 256, 1024));
+        assertTrue(uploads.get(0)[0] != uploads.get(1)[0]);
+    }
+
+    public void testFullInvalidateUploadsEachTileOnce() throws Exception {
+        TileLayer layer = createTileLayer(512, 512, 256);
+        invalidate(layer, null);
+
+        List<int[]> uploads = mBackend.getUploads();
+        assertEquals(4, uploads.size());
+        for (int[] upload : uploads)
+            assertUpload(upload, new Rect(0, 0, 256, 256));
+    }
+
+    public void testInvalidatedRectIsUploadedToEachBuffer() throws Exception {
+        StripLayer layer = createStripLayer(256, 512);
+        Rect rect = new Rect(0, 40, 256, 60);
+        prepareBuffers(layer, rect);
+
+        invalidate(layer, rect);
+        invalidate(layer, rect);
+        List<int[]> uploads = mBackend.getUploads();
+        assertEquals(2, uploads.size());
+        assertUpload(uploads.get(0), rect);
+        assertUpload(uploads.get(1), rect);
+        assertTrue("double-buffered", uploads.get(0)[0] != uploads.get(1)[0]);
+    }
+
+    public void testStaleRectIsUploadedToBackBuffer() throws Exception {
+        StripLayer layer = createStripLayer(256, 512);
+        prepareBuffers(layer, new Rect(0, 40, 256, 60));
+
+        // The back buffer still has the old contents of the previous rect.
+        invalidate(layer, new Rect(0, 100, 256, 120));
+        List<int[]> uploads = mBackend.getUploads();
+        assertEquals(1, uploads.size());
+        assertUpload(uploads.get(0), new Rect(0, 40, 256, 120));
+    }
+
+    public void testRectIsUploadedToItsTileOnly() throws Exception {
+        TileLayer layer = createTileLayer(512, 512, 256);
+        Rect rect = new Rect(266, 300, 306, 320);
+        prepareBuffers(layer, rect);
+
+        invalidate(layer, rect);
+        List<int[]> uploads = mBackend.getUploads();
+        assertEquals(1, uploads.size());
+        assertUpload(uploads.get(0), new Rect(10, 44, 50, 64));
+    }
+
+    public void testFewRowsAreUploadedRowByRow() throws Exception {
+        StripLayer layer = createStripLayer(256, 512);
+        Rect rect = new Rect(10, 40, 50, 42);
+        prepareBuffers(layer, rect);
+
+        // Narrower than the image, so the rows can't be uploaded in place as one.
+        invalidate(layer, rect);
+        List<int[]> uploads = mBackend.getUploads();
+        assertEquals(2, uploads.size());
+        assertUpload(uploads.get(0), new Rect(10, 40, 50, 41));
+        assertUpload(uploads.get(1), new Rect(10, 41, 50, 42));
+    }
+
+    public void testUndrawnLayerOverBudgetUploadsOnlyWhatChanged() throws Exception {
+        checkLayerOverBudgetUploadsOnlyWhatChanged(false);
+    }
+
+    public void testDrawnLayerOverBudgetUploadsOnlyWhatChanged() throws Exception {
+        checkLayerOverBudgetUploadsOnlyWhatChanged(true);
+    }
+
+    /**
+     * Checks that a layer too big for the texture memory budget settles down to uploading no
+     * more than the strip that each small invalidation touches, rather than reloading what the
+     * budget evicted.
+     */
+    private void checkLayerOverBudgetUploadsOnlyWhatChanged(boolean drawn) throws Exception {
+        // Sixteen strips of 1MB each, with room for four.
+        long stripBytes = 1024 * 256 * 4;
+        TextureMemoryBudget budget = TextureMemoryBudget.getInstance();
+        long oldBudget = budget.getBudget();
+        budget.setBudget(4 * stripBytes);
+        try {
+            StripLayer layer = createStripLayer(1024, 4096);
+            Rect rect = new Rect(100, 100, 120, 120);
+            invalidate(layer, null);
+            if (drawn) {
+                // Show the first two strips, which brings them back if they were evicted.
+                layer.draw(createRenderContext(1024, 512));
+                invalidate(layer, rect);
+            }
+
+            for (int i = 0; i < 4; i++) {
+                mBackend.resetCounters();
+                invalidate(layer, rect);
+                assertTrue("uploaded " + mBackend.getBytesUploaded() + " bytes",
+                           mBackend.getBytesUploaded() <= stripBytes);
+                assertTrue(budget.getUsage() <= budget.getBudget());
+            }
+        } finally {
+            budget.setBudget(oldBudget);
+        }
+    }
+
+    public void testIdleTilesAreCompressed() throws Exception {
+        StripLayer layer = createStripLayer(256, 512);
+        layer.setCompressionDelay(0);
+        invalidate(layer, null);
+        assertTrue(waitForCompressedUploads(1));
+    }
+
+    public void testTilesAreNotCompressedWithoutETC1() throws Exception {
+        mBackend.setETC1Supported(false);
+        StripLayer layer = createStripLayer(256, 512);
+        layer.setCompressionDelay(0);
+        invalidate(layer, null);
+        assertFalse(waitForCompressedUploads(1));
+    }
+
+    /** Waits up to a second for the given number of compressed uploads to have been made. */
+    private boolean waitForCompressedUploads(int count) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            if (mBackend.getCompressedTexImageCalls() >= count)
+                return true;
+            Thread.sleep(10);
+        }
+        return false;
+    }
+
+    /**
+     * Fills both buffers and invalidates the given rect, after which another invalidation of
+     * the rect uploads only the rect. Resets the backend's counters.
+     */
+    private void prepareBuffers(TiledLayer layer, Rect rect) throws Exception {
+        invalidate(layer, null);
+        // The back texture is fresh, so the whole tile is uploaded into it, and the rect is
+        // all that the other buffer misses.
+        invalidate(layer, rect);
+        mBackend.resetCounters();
+    }
+
+    /** Checks an upload recorded as { texture, x, y, width, height } against the given rect. */
+    private static void assertUpload(int[] upload, Rect expected) {
+        Rect actual = new Rect(upload[1], upload[2], upload[1] + upload[3],
+                               upload[2] + upload[4]);
+        assertEquals(expected, actual);
+    }
+}
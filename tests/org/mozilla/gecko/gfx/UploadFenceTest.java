@@ -0,0 +1,125 @@
+/* -*- Mode: c++; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Mozilla Android code.
+ *
+ * The Initial Developer of the Original Code is Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Patrick Walton <pcwalton@mozilla.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.mozilla.gecko.gfx;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Checks that uploads are finished on the GPU before the compositor draws them, whether the
+ * swap waits on a fence or, without fence sync, on glFinish().
+ */
+public class UploadFenceTest extends TiledLayerTestCase {
+    private static final int GL_TEXTURE_2D = 0x0DE1;
+    private static final int GL_RGBA = 0x1908;
+    private static final int GL_UNSIGNED_BYTE = 0x1401;
+
+    public void testDrawBeforeUploadFinishesIsIncomplete() {
+        // Twenty milliseconds of GPU time.
+        ByteBuffer pixels = ByteBuffer.allocateDirect(1000 * 1000 * 4);
+        int[] textures = new int[1];
+        mBackend.glGenTextures(1, textures, 0);
+        mBackend.glBindTexture(GL_TEXTURE_2D, textures[0]);
+        mBackend.glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA, 1000, 1000, 0, GL_RGBA, GL_UNSIGNED_BYTE,
+                              pixels);
+        mBackend.glDrawTexfOES(0.0f, 0.0f, 0.0f, 1000.0f, 1000.0f);
+        assertEquals(1, mBackend.getIncompleteDraws());
+
+        mBackend.glFinish();
+        mBackend.glDrawTexfOES(0.0f, 0.0f, 0.0f, 1000.0f, 1000.0f);
+        assertEquals(1, mBackend.getIncompleteDraws());
+    }
+
+    public void testStripSwapWaitsForFence() throws Exception {
+        drawWhileUploading(createStripLayer(1024, 1024), 1024, 1024);
+        assertFencesWaited();
+    }
+
+    public void testTileSwapWaitsForFence() throws Exception {
+        drawWhileUploading(createTileLayer(1024, 1024, 256), 1024, 1024);
+        assertFencesWaited();
+    }
+
+    public void testStripSwapFallsBackToFinish() throws Exception {
+        mBackend.setFenceSyncSupported(false);
+        drawWhileUploading(createStripLayer(1024, 1024), 1024, 1024);
+        assertFinished();
+    }
+
+    public void testTileSwapFallsBackToFinish() throws Exception {
+        mBackend.setFenceSyncSupported(false);
+        drawWhileUploading(createTileLayer(1024, 1024, 256), 1024, 1024);
+        assertFinished();
+    }
+
+    /**
+     * Draws the layer as a compositor would while a few transactions are uploaded, and checks
+     * that nothing was drawn before the GPU had finished uploading it.
+     */
+    private void drawWhileUploading(TiledLayer layer, int width, int height) throws Exception {
+        TiledLayer.RenderContext context = createRenderContext(width, height);
+        for (int i = 0; i < 3; i++) {
+            TiledLayer.Transaction transaction = layer.beginTransaction();
+            transaction.invalidate();
+            UploadFuture<Void> future = layer.endTransaction(transaction);
+            while (!future.isDone()) {
+                layer.draw(context);
+                Thread.sleep(1);
+            }
+            waitFor(future);
+            // Once the transaction is swapped in, its uploads are visible right away.
+            layer.draw(context);
+        }
+
+        assertTrue(mBackend.getDrawCalls() > 0);
+        assertEquals("incomplete draws", 0, mBackend.getIncompleteDraws());
+    }
+
+    private void assertFencesWaited() {
+        assertTrue(mBackend.getFencesCreated() > 0);
+        assertEquals(mBackend.getFencesCreated(), mBackend.getFenceWaits());
+        assertEquals("leaked fences", mBackend.getFencesCreated(),
+                     mBackend.getFencesDestroyed());
+        assertEquals(0, mBackend.getFinishCalls());
+    }
+
+    private void assertFinished() {
+        assertEquals(0, mBackend.getFencesCreated());
+        assertTrue(mBackend.getFinishCalls() > 0);
+    }
+}
@@ -0,0 +1,141 @@
+/* -*- Mode: c++; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Mozilla Android code.
+ *
+ * The Initial Developer of the Original Code is Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Patrick Walton <pcwalton@mozilla.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.gecko.gfx;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import junit.framework.TestCase;
+
+/** Checks how UploadFuture settles, and when it posts its callbacks. */
+public class UploadFutureTest extends TestCase {
+    private CompletionQueue mQueue;
+    private int mCallbackCount;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mQueue = new CompletionQueue();
+    }
+
+    public void testCompleteReleasesWaitersAndPostsCallbacks() throws Exception {
+        final UploadFuture<Integer> future = new UploadFuture<Integer>();
+        future.whenDone(mQueue, countCallback());
+        assertEquals(0, mQueue.drain());
+
+        Thread completer = new Thread() {
+            @Override
+            public void run() {
+                future.complete(42);
+            }
+        };
+        completer.start();
+        assertEquals(Integer.valueOf(42), future.get(5, TimeUnit.SECONDS));
+        completer.join();
+
+        assertTrue(future.isDone());
+        assertFalse(future.isCancelled());
+        assertEquals(1, mQueue.drain());
+        assertEquals(1, mCallbackCount);
+    }
+
+    public void testOnlyFirstOutcomeCounts() throws Exception {
+        UploadFuture<Integer> future = new UploadFuture<Integer>();
+        future.whenDone(mQueue, countCallback());
+        future.complete(1);
+        future.complete(2);
+        future.fail(new RuntimeException());
+        assertFalse(future.cancel(false));
+        assertEquals(Integer.valueOf(1), future.get());
+        assertEquals(1, mQueue.drain());
+    }
+
+    public void testFailure() throws Exception {
+        UploadFuture<Void> future = new UploadFuture<Void>();
+        RuntimeException cause = new RuntimeException();
+        future.fail(cause);
+        try {
+            future.get();
+            fail("Expected an ExecutionException");
+        } catch (ExecutionException e) {
+            assertSame(cause, e.getCause());
+        }
+    }
+
+    public void testCancel() throws Exception {
+        UploadFuture<Void> future = new UploadFuture<Void>();
+        future.whenDone(mQueue, countCallback());
+        assertTrue(future.cancel(true));
+        assertTrue(future.isCancelled());
+        assertTrue(future.isDone());
+        assertEquals(1, mQueue.drain());
+        try {
+            future.get();
+            fail("Expected a CancellationException");
+        } catch (CancellationException e) {
+            // Expected.
+        }
+    }
+
+    public void testCallbackAfterDoneIsPostedRightAway() {
+        UploadFuture<Void> future = new UploadFuture<Void>();
+        future.complete(null);
+        future.whenDone(mQueue, countCallback());
+        assertEquals(1, mQueue.drain());
+        assertEquals(1, mCallbackCount);
+    }
+
+    public void testGetTimesOut() throws Exception {
+        try {
+            new UploadFuture<Void>().get(10, TimeUnit.MILLISECONDS);
+            fail("Expected a TimeoutException");
+        } catch (TimeoutException e) {
+            // Expected.
+        }
+    }
+
+    private Runnable countCallback() {
+        return new Runnable() {
+            @Override
+            public void run() {
+                mCallbackCount++;
+            }
+        };
+    }
+}
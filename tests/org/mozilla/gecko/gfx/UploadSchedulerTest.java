@@ -0,0 +1,175 @@
+/* -*- Mode: c++; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Mozilla Android code.
+ *
+ * The Initial Developer of the Original Code is Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Patrick Walton <pcwalton@mozilla.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.gecko.gfx;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+
+/**
+ * Checks that UploadScheduler holds uploads to each frame's budget, refills it when the frame
+ * clock ticks, and lets visible uploads go first.
+ *
+ * A stalled clock refills the budget after 100 ms anyway, so each test ticks and checks what's
+ * held up well within that.
+ */
+public class UploadSchedulerTest extends TestCase {
+    private static final long TIMEOUT_SECONDS = 5;
+    // Long enough for a waiting upload to have gone ahead if it were going to.
+    private static final long SETTLE_MILLIS = 20;
+    private static final long NO_LIMIT = Long.MAX_VALUE / 2;
+
+    private FrameClock mClock;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mClock = new FrameClock();
+    }
+
+    public void testFirstUploadOfFrameAlwaysGoesAhead() {
+        UploadScheduler scheduler = createScheduler(100, NO_LIMIT);
+        mClock.tick();
+        // Both would block if they didn't fit.
+        scheduler.acquire(10000, false);
+        mClock.tick();
+        scheduler.acquire(10000, true);
+    }
+
+    public void testByteBudgetRefillsEachTick() throws Exception {
+        UploadScheduler scheduler = createScheduler(1000, NO_LIMIT);
+        mClock.tick();
+        scheduler.acquire(600, false);
+        scheduler.acquire(400, false);
+
+        Upload upload = startUpload(scheduler, 1, false);
+        assertFalse(upload.awaitAcquired(SETTLE_MILLIS));
+        mClock.tick();
+        assertTrue(upload.awaitAcquired(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS)));
+    }
+
+    public void testTimeBudgetRefillsEachTick() throws Exception {
+        UploadScheduler scheduler = createScheduler(NO_LIMIT, TimeUnit.MILLISECONDS.toNanos(4));
+        mClock.tick();
+        scheduler.acquire(1, false);
+        scheduler.complete(TimeUnit.MILLISECONDS.toNanos(3));
+        // There's a millisecond left, so this goes ahead and overruns the frame.
+        scheduler.acquire(1, false);
+        scheduler.complete(TimeUnit.MILLISECONDS.toNanos(3));
+
+        Upload upload = startUpload(scheduler, 1, false);
+        assertFalse(upload.awaitAcquired(SETTLE_MILLIS));
+        mClock.tick();
+        assertTrue(upload.awaitAcquired(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS)));
+    }
+
+    public void testVisibleUploadsGoFirst() throws Exception {
+        // Each frame has room for only one of the waiting uploads.
+        UploadScheduler scheduler = createScheduler(100, NO_LIMIT);
+        mClock.tick();
+        scheduler.acquire(100, false);
+
+        Upload offscreen = startUpload(scheduler, 100, false);
+        offscreen.awaitWaiting();
+        Upload visible = startUpload(scheduler, 100, true);
+        visible.awaitWaiting();
+
+        mClock.tick();
+        assertTrue(visible.awaitAcquired(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS)));
+        assertFalse(offscreen.awaitAcquired(SETTLE_MILLIS));
+        mClock.tick();
+        assertTrue(offscreen.awaitAcquired(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS)));
+    }
+
+    public void testStalledClockStillRefills() throws Exception {
+        UploadScheduler scheduler = createScheduler(100, NO_LIMIT);
+        mClock.tick();
+        scheduler.acquire(100, false);
+
+        Upload upload = startUpload(scheduler, 100, false);
+        assertTrue(upload.awaitAcquired(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS)));
+    }
+
+    private UploadScheduler createScheduler(long bytesPerFrame, long nanosPerFrame) {
+        UploadScheduler scheduler = new UploadScheduler(bytesPerFrame, nanosPerFrame);
+        mClock.addListener(scheduler);
+        return scheduler;
+    }
+
+    private static Upload startUpload(UploadScheduler scheduler, long bytes, boolean visible) {
+        Upload upload = new Upload(scheduler, bytes, visible);
+        upload.start();
+        return upload;
+    }
+
+    /** An upload thread that acquires its bytes from the scheduler. */
+    private static class Upload extends Thread {
+        private final UploadScheduler mScheduler;
+        private final long mBytes;
+        private final boolean mVisible;
+        private final CountDownLatch mAcquired;
+
+        public Upload(UploadScheduler scheduler, long bytes, boolean visible) {
+            mScheduler = scheduler;
+            mBytes = bytes;
+            mVisible = visible;
+            mAcquired = new CountDownLatch(1);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            mScheduler.acquire(mBytes, mVisible);
+            mAcquired.countDown();
+        }
+
+        public boolean awaitAcquired(long timeoutMillis) throws InterruptedException {
+            return mAcquired.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        /** Waits until the upload is waiting for the scheduler. */
+        public void awaitWaiting() throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+            while (getState() != Thread.State.TIMED_WAITING) {
+                assertTrue("Upload didn't wait", System.nanoTime() < deadline);
+                assertEquals("Upload went ahead", 1, mAcquired.getCount());
+                Thread.sleep(1);
+            }
+        }
+    }
+}